@@ -23,43 +23,146 @@ package de.appplant.cordova.plugin.background;
 
 import android.app.Activity;
 import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaPlugin;
+import org.apache.cordova.PluginResult;
+import org.apache.cordova.PluginResult.Status;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import de.appplant.cordova.plugin.background.ForegroundService.ForegroundBinder;
+import de.appplant.cordova.plugin.background.LifecycleState.BindState;
 
 import static android.content.Context.BIND_AUTO_CREATE;
+import static de.appplant.cordova.plugin.background.LifecycleState.ENABLED;
+import static de.appplant.cordova.plugin.background.LifecycleState.IN_BACKGROUND;
+import static de.appplant.cordova.plugin.background.LifecycleState.START_PENDING;
+import static de.appplant.cordova.plugin.background.LifecycleState.STOP_PENDING;
 import static de.appplant.cordova.plugin.background.BackgroundModeExt.clearKeyguardFlags;
 
 public class BackgroundMode extends CordovaPlugin {
 
+    // Plugin namespace
+    static final String JS_NAMESPACE = "cordova.plugins.backgroundMode";
+
     // Event types for callbacks
-    private enum Event { ACTIVATE, DEACTIVATE, FAILURE }
+    enum Event
+    {
+        ACTIVATE(true, true), DEACTIVATE(false, true), FAILURE(false, false),
+        THROTTLE(null, false), TICK(null, false), HEARTBEAT(null, false);
 
-    // Plugin namespace
-    private static final String JS_NAMESPACE = "cordova.plugins.backgroundMode";
+        // Name of the event as known by the JS side
+        final String type;
+
+        // Bit of the event within the listener interest mask
+        final int bit = 1 << ordinal();
+
+        // Flag indicates if the event toggles the active state
+        final boolean isToggle;
+
+        // Precompiled script to fire the event, only the message is missing
+        final String script;
+
+        // Precompiled JSON fields of the event, only the message is missing
+        final String json;
+
+        Event (Boolean active, boolean isToggle)
+        {
+            this.type     = name().toLowerCase();
+            this.isToggle = isToggle;
+            this.script   = (active != null ?
+                    JS_NAMESPACE + "._setActive(" + active + ");" : "") +
+                    JS_NAMESPACE + ".fireEvent('" + type + "',";
+            this.json     = EventSerializer.fields(type);
+        }
+    }
+
+    // Operation to apply on the service once it's connected
+    private interface ServiceOp { void run (ForegroundService service); }
 
-    // Flag indicates if the app is in background or foreground
-    private boolean inBackground = false;
+    // Packed lifecycle state made of the bind state and the flags, the
+    // bind state only moves on the UI thread
+    private final LifecycleState state = new LifecycleState();
 
-    // Flag indicates if the plugin is enabled or disabled
-    private boolean isDisabled = true;
+    // Operations arrived while the service was still binding
+    private final List<ServiceOp> pendingOps = new ArrayList<>();
 
-    // Flag indicates if the service is bind
-    private boolean isBind = false;
+    // Uptime in ms when the last bind got requested
+    private long bindStartedAt = 0;
 
     // Default settings for the notification
     private static JSONObject defaultSettings = new JSONObject();
 
+    // Flag indicates if the settings got configured or restored
+    private static volatile boolean isConfigured = false;
+
     // Service that keeps the app awake
     private ForegroundService service;
 
+    // Delivers the events to the web view
+    private EventDispatcher dispatcher;
+
+    // Drain hooks to run before the plugin goes away
+    private final ShutdownPipeline shutdown = new ShutdownPipeline();
+
+    // Native tick source while in background
+    private Heartbeat heartbeat;
+
+    // Schedules the delayed start and stop of the service
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Starts the service once the enter delay has passed
+    private final Runnable delayedStart = this::startService;
+
+    // Stops the service once the exit grace period has passed
+    private final Runnable delayedStop = this::stopService;
+
+    // Receives the events of the service, the heartbeat slows down with
+    // each throttle level
+    private final ForegroundService.Listener serviceListener =
+            new ForegroundService.Listener()
+    {
+        @Override
+        public void onEvent (Event event, String message)
+        {
+            fireEvent(event, message);
+        }
+
+        @Override
+        public void onThrottle (ThrottleController.Level level)
+        {
+            heartbeat.setScale(level.scale);
+            fireEvent(Event.THROTTLE, level.type);
+        }
+    };
+
+    // Performs the (un)bind calls for the lifecycle transitions
+    private final LifecycleState.Binding binding = new LifecycleState.Binding()
+    {
+        @Override
+        public boolean bind()
+        {
+            return BackgroundMode.this.bind();
+        }
+
+        @Override
+        public void unbind()
+        {
+            BackgroundMode.this.unbind();
+        }
+    };
+
     // Used to (un)bind the service to with the activity
     private final ServiceConnection connection = new ServiceConnection()
     {
@@ -67,16 +170,38 @@ public class BackgroundMode extends CordovaPlugin {
         public void onServiceConnected (ComponentName name, IBinder service)
         {
             ForegroundBinder binder = (ForegroundBinder) service;
-            BackgroundMode.this.service = binder.getService();
+            onBound(binder.getService());
         }
 
         @Override
         public void onServiceDisconnected (ComponentName name)
         {
-            fireEvent(Event.FAILURE, "'service disconnected'");
+            synchronized (pendingOps)
+            {
+                state.onDisconnected();
+                service = null;
+            }
+
+            fireEvent(Event.FAILURE, "service disconnected");
         }
     };
 
+    /**
+     * Called after plugin construction and fields have been initialized.
+     */
+    @Override
+    protected void pluginInitialize()
+    {
+        dispatcher = new EventDispatcher(cordova, webView);
+        heartbeat  = new Heartbeat(
+                beats -> dispatcher.post(Event.HEARTBEAT, beats));
+
+        shutdown.register("executor", BackgroundMode::drainExecutor);
+        shutdown.register("notifications",
+                () -> runOnService(ForegroundService::drainNotifications));
+        shutdown.register("events", dispatcher::flush);
+    }
+
     /**
      * Executes the request.
      *
@@ -104,6 +229,54 @@ public class BackgroundMode extends CordovaPlugin {
             case "disable":
                 disableMode();
                 break;
+            case "events":
+                dispatcher.setChannel(callback);
+                heartbeat.ack();
+                return true;
+            case "heartbeat":
+                heartbeat.ack();
+                break;
+            case "listen":
+                dispatcher.setInterest(args.optInt(0));
+                break;
+            case "drainEvents":
+                callback.success(dispatcher.drain(args.optLong(0, -1)));
+                return true;
+            case "acquireLease":
+                callback.success(acquireLease(args.optString(0, "default"), args.optLong(1)));
+                return true;
+            case "releaseLease":
+                releaseLease(args.optInt(0));
+                break;
+            case "beginTask":
+                callback.success(BackgroundTasks.getInstance().begin(
+                        args.optLong(0, defaultSettings.optLong("taskMaxLifetime"))));
+                return true;
+            case "endTask":
+                BackgroundTasks.getInstance().end(args.optInt(0));
+                break;
+            case "leases":
+                callback.success(getLeases().getStats());
+                return true;
+            case "submit":
+                submitTask(args.optString(0), args.optJSONObject(1), callback);
+                return true;
+            case "results":
+                setResultsChannel(callback);
+                return true;
+            case "ackResults":
+                getExecutor().ack(args.optJSONArray(0));
+                break;
+            case "progress":
+                setProgress(args.optInt(0), args.optInt(1), args.optBoolean(2));
+                break;
+            case "metrics":
+                callback.success(getMetrics());
+                return true;
+            case "resetMetrics":
+                Metrics.reset();
+                SettingsStore.clearRestarts(cordova.getActivity());
+                break;
             default:
                 validAction = false;
         }
@@ -117,6 +290,17 @@ public class BackgroundMode extends CordovaPlugin {
         return validAction;
     }
 
+    /**
+     * Called when the web view does a top-level navigation or refreshes.
+     */
+    @Override
+    public void onReset()
+    {
+        dispatcher.setChannel(null);
+        heartbeat.ack();
+        setResultsChannel(null);
+    }
+
     /**
      * Called when the system is about to start resuming a previous activity.
      *
@@ -125,9 +309,18 @@ public class BackgroundMode extends CordovaPlugin {
     @Override
     public void onPause(boolean multitasking)
     {
+        long delay = defaultSettings.optLong("enterDelay", 0);
+
         try {
-            inBackground = true;
-            startService();
+            state.setFlag(IN_BACKGROUND, true);
+
+            if (cancelStop()) {
+                Metrics.count("lifecycle.cyclesAvoided");
+            } else if (delay > 0) {
+                scheduleStart(delay);
+            } else {
+                startService();
+            }
         } finally {
             clearKeyguardFlags(cordova.getActivity());
         }
@@ -149,39 +342,83 @@ public class BackgroundMode extends CordovaPlugin {
     @Override
     public void onResume (boolean multitasking)
     {
-        inBackground = false;
-        stopService();
+        long grace = defaultSettings.optLong("exitGrace", 0);
+
+        state.setFlag(IN_BACKGROUND, false);
+
+        if (cancelStart()) {
+            Metrics.count("lifecycle.cyclesAvoided");
+        } else if (grace > 0 && state.getBindState() != BindState.IDLE) {
+            scheduleStop(grace);
+        } else {
+            stopService();
+        }
     }
 
     /**
-     * Called when the activity will be destroyed.
+     * Called when the activity will be destroyed. Drains the pending work
+     * within the shutdown timeout before the service gets stopped and kills
+     * the process only if configured.
      */
     @Override
     public void onDestroy()
     {
+        JSONObject settings = defaultSettings;
+
+        cancelStart();
+        cancelStop();
+
+        shutdown.run(settings.optLong("shutdownTimeout", 500));
         stopService();
-        android.os.Process.killProcess(android.os.Process.myPid());
+
+        if (settings.optBoolean("killProcess", false)) {
+            android.os.Process.killProcess(android.os.Process.myPid());
+        }
     }
 
     /**
-     * Enable the background mode.
+     * Waits for the tasks in flight and delivers their results. Nothing to
+     * do if the executor hasn't been created.
      */
-    private void enableMode()
+    private static void drainExecutor()
     {
-        isDisabled = false;
+        TaskExecutor executor = TaskExecutor.peekInstance();
 
-        if (inBackground) {
-            startService();
+        if (executor != null) {
+            executor.drain();
         }
     }
 
     /**
-     * Disable the background mode.
+     * Enable the background mode. The start of the service is posted onto
+     * the UI thread where all (un)bind calls take place.
+     */
+    private void enableMode()
+    {
+        state.setFlag(ENABLED, true);
+        SettingsStore.setEnabled(cordova.getActivity(), true);
+
+        handler.post(() -> {
+            if (state.isSet(IN_BACKGROUND)) {
+                startService();
+            }
+        });
+    }
+
+    /**
+     * Disable the background mode. The stop of the service is posted onto
+     * the UI thread where all (un)bind calls take place.
      */
     private void disableMode()
     {
-        stopService();
-        isDisabled = true;
+        state.setFlag(ENABLED, false);
+        SettingsStore.setEnabled(cordova.getActivity(), false);
+
+        handler.post(() -> {
+            cancelStart();
+            cancelStop();
+            stopService();
+        });
     }
 
     /**
@@ -207,6 +444,9 @@ public class BackgroundMode extends CordovaPlugin {
     private void setDefaultSettings(JSONObject settings)
     {
         defaultSettings = settings;
+        isConfigured    = true;
+
+        SettingsStore.saveSettings(cordova.getActivity(), settings);
     }
 
     /**
@@ -217,82 +457,344 @@ public class BackgroundMode extends CordovaPlugin {
     }
 
     /**
-     * Update the notification.
+     * Restores the persisted settings unless they got configured within
+     * this process, e.g. once the service got restarted after being killed.
+     *
+     * @param context Any context of the app.
+     */
+    static void restoreSettings (Context context)
+    {
+        if (isConfigured)
+            return;
+
+        defaultSettings = SettingsStore.loadSettings(context);
+        isConfigured    = true;
+    }
+
+    /**
+     * Update the notification. The settings are persisted so that the
+     * service shows them again once it got restarted after being killed.
      *
      * @param settings The config settings
      */
     private void updateNotification(JSONObject settings)
     {
-        if (isBind) {
-            service.updateNotification(settings);
+        SettingsStore.saveUpdate(cordova.getActivity(), settings);
+        runOnService(service -> service.updateNotification(settings));
+    }
+
+    /**
+     * Update the progress bar of the notification.
+     *
+     * @param max           The max value, 0 to remove the bar.
+     * @param current       The current value.
+     * @param indeterminate If the progress is indeterminate.
+     */
+    private void setProgress (int max, int current, boolean indeterminate)
+    {
+        runOnService(service -> service.setProgress(max, current, indeterminate));
+    }
+
+    /**
+     * Takes a lease on the shared wake lock and lets the service know about
+     * the pending work.
+     *
+     * @param tag     Describes what the lease is used for.
+     * @param timeout Time in ms after the lease gets reclaimed.
+     *
+     * @return The ID of the lease.
+     */
+    private int acquireLease (String tag, long timeout)
+    {
+        int id = getLeases().acquire(tag, timeout);
+
+        runOnService(ForegroundService::onWorkAdded);
+
+        return id;
+    }
+
+    /**
+     * Releases the lease on the shared wake lock and lets the service know
+     * that the work has been done.
+     *
+     * @param id The ID of the lease.
+     */
+    private void releaseLease (int id)
+    {
+        if (getLeases().release(id)) {
+            runOnService(ForegroundService::onWorkDone);
+        }
+    }
+
+    /**
+     * Queues the native task and lets the service know about the pending
+     * work. The ID is passed to the callback before the task gets queued,
+     * so that it arrives ahead of the result.
+     *
+     * @param name     The name of the task.
+     * @param args     The arguments of the task.
+     * @param callback The callback to invoke with the ID.
+     */
+    private void submitTask (String name, JSONObject args, CallbackContext callback)
+    {
+        TaskExecutor executor = getExecutor();
+        int id                = executor.nextId();
+
+        callback.success(id);
+        executor.submit(id, name, args);
+
+        runOnService(ForegroundService::onWorkAdded);
+    }
+
+    /**
+     * Set the callback to stream the batches of task results to.
+     *
+     * @param channel The callback to keep or null to hold the results back.
+     */
+    private void setResultsChannel (CallbackContext channel)
+    {
+        TaskExecutor executor = TaskExecutor.peekInstance();
+
+        if (channel == null) {
+            if (executor != null) executor.setSink(null);
+            return;
+        }
+
+        getExecutor().setSink(results -> {
+            PluginResult result = new PluginResult(Status.OK, results);
+            result.setKeepCallback(true);
+            channel.sendPluginResult(result);
+
+            runOnService(ForegroundService::onWorkDone);
+        });
+    }
+
+    /**
+     * Returns the shared task executor.
+     */
+    private TaskExecutor getExecutor()
+    {
+        return TaskExecutor.getInstance(cordova.getActivity());
+    }
+
+    /**
+     * Returns the shared wake lock leases.
+     */
+    private WakeLockLeases getLeases()
+    {
+        return WakeLockLeases.getInstance(cordova.getActivity());
+    }
+
+    /**
+     * Run the operation on the service. If the service is still binding the
+     * operation gets queued and applied once connected.
+     *
+     * @param op The operation to run.
+     */
+    private void runOnService (ServiceOp op)
+    {
+        ForegroundService fs;
+
+        synchronized (pendingOps)
+        {
+            switch (state.getBindState())
+            {
+                case BINDING:
+                    pendingOps.add(op);
+                    return;
+                case BOUND:
+                    fs = service;
+                    break;
+                default:
+                    return;
+            }
+        }
+
+        op.run(fs);
+    }
+
+    /**
+     * Called once the service is connected. Completes the transition to the
+     * bound state and applies the queued operations.
+     *
+     * @param fs The connected service.
+     */
+    private void onBound (ForegroundService fs)
+    {
+        List<ServiceOp> ops;
+
+        synchronized (pendingOps)
+        {
+            if (!state.onConnected())
+                return;
+
+            service = fs;
+
+            fs.setListener(serviceListener);
+
+            Metrics.record("service.bind",
+                    SystemClock.elapsedRealtime() - bindStartedAt);
+
+            ops = new ArrayList<>(pendingOps);
+            pendingOps.clear();
         }
+
+        for (ServiceOp op : ops) {
+            op.run(fs);
+        }
+    }
+
+    /**
+     * Start the service once the app stayed long enough in background.
+     *
+     * @param delay The enter delay in ms.
+     */
+    private void scheduleStart (long delay)
+    {
+        state.setFlag(START_PENDING, true);
+        handler.postDelayed(delayedStart, delay);
+    }
+
+    /**
+     * Cancel the scheduled start of the service.
+     *
+     * @return true if the start was pending.
+     */
+    private boolean cancelStart()
+    {
+        handler.removeCallbacks(delayedStart);
+        return state.setFlag(START_PENDING, false);
+    }
+
+    /**
+     * Keep the service warm for a short return to the app.
+     *
+     * @param grace The exit grace period in ms.
+     */
+    private void scheduleStop (long grace)
+    {
+        state.setFlag(STOP_PENDING, true);
+        handler.postDelayed(delayedStop, grace);
+    }
+
+    /**
+     * Cancel the scheduled stop of the service.
+     *
+     * @return true if the stop was pending.
+     */
+    private boolean cancelStop()
+    {
+        handler.removeCallbacks(delayedStop);
+        return state.setFlag(STOP_PENDING, false);
+    }
+
+    /**
+     * Returns a snapshot of the runtime metrics.
+     */
+    private JSONObject getMetrics()
+    {
+        Metrics.gauge("service.bindState", state.getBindState().name().toLowerCase());
+        Metrics.gauge("tasks.outstanding", BackgroundTasks.getInstance().count());
+        Metrics.gauge("leases.active", getLeases().count());
+        Metrics.gauge("service.restarts", SettingsStore.getRestarts(cordova.getActivity()));
+        TaskExecutor executor = TaskExecutor.peekInstance();
+
+        Metrics.gauge("executor.pending", executor != null ? executor.getPending() : 0);
+
+        return Metrics.snapshot();
     }
 
     /**
      * Bind the activity to a background service and put them into foreground
-     * state.
+     * state. Must be called on the UI thread.
      */
     private void startService()
     {
-        Activity context = cordova.getActivity();
+        state.start(binding);
+    }
 
-        if (isDisabled || isBind)
-            return;
+    /**
+     * Unbind the activity from the background service and stop it. Must be
+     * called on the UI thread.
+     */
+    private void stopService()
+    {
+        state.stop(binding);
+    }
+
+    /**
+     * Binds and starts the service. Called by the lifecycle state once it
+     * moved to BINDING.
+     *
+     * @return false if the bind failed.
+     */
+    private boolean bind()
+    {
+        Activity context  = cordova.getActivity();
+        boolean isBinding = false;
+        bindStartedAt     = SystemClock.elapsedRealtime();
 
-        
         try {
-          Intent intent = new Intent(context, ForegroundService.class);
-            context.bindService(intent, connection, BIND_AUTO_CREATE);
+            Intent intent = new Intent(context, ForegroundService.class);
+            SettingsStore.clearUpdate(context);
+            isBinding = context.bindService(intent, connection, BIND_AUTO_CREATE);
             fireEvent(Event.ACTIVATE, null);
             context.startService(intent);
+            SettingsStore.setActive(context, true);
+            heartbeat.start(defaultSettings.optLong("heartbeatInterval", 0));
         } catch (Exception e) {
-            fireEvent(Event.FAILURE, String.format("'%s'", e.getMessage()));
+            fireEvent(Event.FAILURE, e.getMessage());
         }
 
-        isBind = true;
+        return isBinding;
     }
 
     /**
-     * Bind the activity to a background service and put them into foreground
-     * state.
+     * Unbinds and stops the service. Called by the lifecycle state once it
+     * moved to UNBINDING.
      */
-    private void stopService()
+    private void unbind()
     {
         Activity context = cordova.getActivity();
         Intent intent    = new Intent(context, ForegroundService.class);
+        long start       = SystemClock.elapsedRealtime();
+
+        synchronized (pendingOps)
+        {
+            pendingOps.clear();
 
-        if (!isBind) return;
+            if (service != null) {
+                service.setListener(null);
+                service = null;
+            }
+        }
 
         fireEvent(Event.DEACTIVATE, null);
-        context.unbindService(connection);
-        context.stopService(intent);
+        heartbeat.stop();
+        heartbeat.setScale(1);
 
-        isBind = false;
+        try {
+            context.unbindService(connection);
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+
+        try {
+            context.stopService(intent);
+        } finally {
+            SettingsStore.setActive(context, false);
+            Metrics.record("service.unbind", SystemClock.elapsedRealtime() - start);
+        }
     }
 
     /**
      * Fire vent with some parameters inside the web view.
      *
      * @param event The name of the event
-     * @param params Optional arguments for the event
+     * @param message Optional message for the event
      */
-    private void fireEvent (Event event, String params)
+    private void fireEvent (Event event, String message)
     {
-        String eventName = event.name().toLowerCase();
-        Boolean active   = event == Event.ACTIVATE;
-
-        String str = String.format("%s._setActive(%b)",
-                JS_NAMESPACE, active);
-
-        str = String.format("%s;%s.on('%s', %s)",
-                str, JS_NAMESPACE, eventName, params);
-
-        str = String.format("%s;%s.fireEvent('%s',%s);",
-                str, JS_NAMESPACE, eventName, params);
-
-        final String js = str;
-
-        cordova.getActivity().runOnUiThread(() -> webView.loadUrl("javascript:" + js));
+        dispatcher.dispatch(event, message);
     }
-} 
-
+}
@@ -0,0 +1,188 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tokens of the background tasks reported by the JS side, similar to the
+ * background tasks on iOS. Each token has a max lifetime, so that a leaked
+ * token cannot pin the CPU forever.
+ */
+class BackgroundTasks {
+
+    // Notified on the main thread once a task began or ended
+    interface Listener { void onTasksChanged (boolean added); }
+
+    // Lifetime used if none or an invalid one was given
+    private static final long DEFAULT_LIFETIME = 10 * 60 * 1000;
+
+    // The process-wide instance
+    private static final BackgroundTasks instance = new BackgroundTasks();
+
+    // Used to expire the tokens and notify the listener
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Expires the tokens which have outlived their lifetime
+    private final Runnable expire = this::expire;
+
+    // Uptime in ms until when each token is alive by its ID
+    private final Map<Integer, Long> tokens = new LinkedHashMap<>();
+
+    // Notified once a task began or ended
+    private Listener listener;
+
+    // ID of the last token
+    private int lastId = 0;
+
+    /**
+     * Returns the process-wide instance.
+     */
+    static BackgroundTasks getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * Set the listener to notify once a task began or ended.
+     *
+     * @param listener The listener or null to remove it.
+     */
+    synchronized void setListener (Listener listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * Begins a new task.
+     *
+     * @param lifetime Time in ms after the token expires.
+     *
+     * @return The token of the task.
+     */
+    synchronized int begin (long lifetime)
+    {
+        int token = ++lastId;
+
+        if (lifetime <= 0) {
+            lifetime = DEFAULT_LIFETIME;
+        }
+
+        tokens.put(token, SystemClock.elapsedRealtime() + lifetime);
+
+        scheduleExpire();
+        notifyListener(true);
+
+        return token;
+    }
+
+    /**
+     * Ends the task.
+     *
+     * @param token The token of the task.
+     *
+     * @return false if the token was not alive anymore.
+     */
+    synchronized boolean end (int token)
+    {
+        if (tokens.remove(token) == null)
+            return false;
+
+        scheduleExpire();
+        notifyListener(false);
+
+        return true;
+    }
+
+    /**
+     * Returns the number of outstanding tokens.
+     */
+    synchronized int count()
+    {
+        return tokens.size();
+    }
+
+    /**
+     * Removes all tokens which have outlived their lifetime.
+     */
+    private synchronized void expire()
+    {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Long> it = tokens.values().iterator();
+        boolean removed   = false;
+
+        while (it.hasNext())
+        {
+            if (it.next() > now)
+                continue;
+
+            it.remove();
+            Metrics.count("tasks.expired");
+            removed = true;
+        }
+
+        scheduleExpire();
+
+        if (removed) {
+            notifyListener(false);
+        }
+    }
+
+    /**
+     * Schedules the expiry of the next token.
+     */
+    private void scheduleExpire()
+    {
+        long next = Long.MAX_VALUE;
+
+        handler.removeCallbacks(expire);
+
+        for (long until : tokens.values()) {
+            next = Math.min(next, until);
+        }
+
+        if (next != Long.MAX_VALUE) {
+            handler.postDelayed(expire,
+                    Math.max(next - SystemClock.elapsedRealtime(), 0));
+        }
+    }
+
+    /**
+     * Notifies the listener on the main thread.
+     *
+     * @param added If a task began or ended.
+     */
+    private void notifyListener (boolean added)
+    {
+        Listener l = listener;
+
+        if (l != null) {
+            handler.post(() -> l.onTasksChanged(added));
+        }
+    }
+}
@@ -0,0 +1,519 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.annotation.TargetApi;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+import android.view.View;
+import android.webkit.WebMessage;
+import android.webkit.WebMessagePort;
+import android.webkit.WebView;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaInterface;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+import org.apache.cordova.PluginResult.Status;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+import de.appplant.cordova.plugin.background.BackgroundMode.Event;
+
+import static de.appplant.cordova.plugin.background.BackgroundMode.JS_NAMESPACE;
+
+import static android.os.Build.VERSION.SDK_INT;
+import static android.os.Build.VERSION_CODES.M;
+
+/**
+ * Collects the events fired by the plugin and delivers them to the web view
+ * in batches. Through the port or callback a batch goes out with the next
+ * turn of the main loop, so that events fired while the screen is off don't
+ * wait for a frame. Only the costly script fallback waits for the next frame.
+ * Redundant activate/deactivate pairs which happen within the same batch are
+ * merged before they reach the bridge, repeated events of the same type
+ * collapse into the latest one.
+ *
+ * The transport is selected automatically. If the web view supports message
+ * channels the events are posted through a message port. Otherwise they are
+ * streamed through the callback registered by the JS side. As long as there
+ * is none, they are injected as a single script instead.
+ */
+class EventDispatcher implements Choreographer.FrameCallback {
+
+    // Ways to deliver the events, ordered by preference
+    enum Transport
+    {
+        PORT, CALLBACK, SCRIPT;
+
+        // Name of the histogram of the queueing latency
+        final String metric = "events.latency." + name().toLowerCase();
+
+        // Precompiled head of a batch, only the time and events are missing
+        final String json = EventSerializer.head(name().toLowerCase());
+    }
+
+    // Scheme prefix of the script loaded into the web view
+    private static final String JS_SCHEME = "javascript:";
+
+    // Message posted to the web view to hand over the port
+    private static final String PORT_MESSAGE = "backgroundmode:port";
+
+    // Events always delivered as they drive the active state of the JS side
+    private static final int STATE_EVENTS =
+            Event.ACTIVATE.bit | Event.DEACTIVATE.bit | Event.FAILURE.bit;
+
+    // Initial number of events the queue can hold before it has to grow
+    private static final int INITIAL_CAPACITY = 8;
+
+    // Used to post the flush onto the UI thread
+    private final CordovaInterface cordova;
+
+    // The web view to deliver the events to
+    private final CordovaWebView webView;
+
+    // Events waiting for the next batch, kept in parallel arrays so that
+    // queueing an event doesn't allocate
+    private Event[] queuedEvents = new Event[INITIAL_CAPACITY];
+
+    // Messages of the queued events
+    private String[] queuedMessages = new String[INITIAL_CAPACITY];
+
+    // Sequence numbers of the queued events
+    private long[] queuedSeqs = new long[INITIAL_CAPACITY];
+
+    // Number of queued events
+    private int queued = 0;
+
+    // Log of the latest events to replay the missed ones
+    private final EventRing ring = new EventRing();
+
+    // Reused to build the script or the batch, only the final string gets
+    // allocated
+    private final StringBuilder buffer = new StringBuilder(256);
+
+    // Used to post the flush onto the main thread
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Asks for a frame callback to flush the queue
+    private final Runnable requestFrame =
+            () -> Choreographer.getInstance().postFrameCallback(this);
+
+    // Flushes the queue on the main thread
+    private final Runnable flushQueue = this::deliverQueued;
+
+    // Long-lived callback registered by the JS side to receive the events
+    private CallbackContext channel;
+
+    // Port to post the events through, if supported by the web view
+    private WebMessagePort port;
+
+    // Bitset of the events the JS side has listeners for
+    private volatile int interest = ~0;
+
+    // Flag indicates if a flush is scheduled
+    private boolean isScheduled = false;
+
+    // Uptime in nanoseconds when the oldest queued event got fired
+    private long queuedSince = 0;
+
+
+    /**
+     * Creates a dispatcher for the given web view.
+     *
+     * @param cordova The cordova interface of the plugin.
+     * @param webView The web view to deliver the events to.
+     */
+    EventDispatcher (CordovaInterface cordova, CordovaWebView webView)
+    {
+        this.cordova = cordova;
+        this.webView = webView;
+    }
+
+    /**
+     * Set the callback used to stream the events to the JS side. Also tries
+     * to open a message port as the JS side is ready to receive it now.
+     *
+     * @param channel The callback to keep or null to fall back to scripts.
+     */
+    synchronized void setChannel (CallbackContext channel)
+    {
+        this.channel = channel;
+
+        if (port != null) {
+            port.close();
+            port = null;
+        }
+
+        updateTransportGauge();
+
+        if (channel == null)
+            return;
+
+        cordova.getActivity().runOnUiThread(this::openPort);
+
+        if (queued > 0) {
+            handler.post(flushQueue);
+        }
+    }
+
+    /**
+     * Opens a message channel and hands over one end to the JS side.
+     */
+    @TargetApi(M)
+    private void openPort()
+    {
+        View view = webView.getView();
+
+        if (SDK_INT < M || !(view instanceof WebView))
+            return;
+
+        WebView wv = (WebView) view;
+
+        try {
+            WebMessagePort[] ports = wv.createWebMessageChannel();
+            WebMessage msg = new WebMessage(PORT_MESSAGE,
+                    new WebMessagePort[] { ports[1] });
+
+            wv.postWebMessage(msg, Uri.parse("*"));
+
+            synchronized (this) {
+                port = ports[0];
+                updateTransportGauge();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reports the transport used for the next batch to the metrics.
+     */
+    private void updateTransportGauge()
+    {
+        Metrics.gauge("events.transport", getTransport().name().toLowerCase());
+    }
+
+    /**
+     * Returns the transport used for the next batch.
+     */
+    private Transport getTransport()
+    {
+        if (port != null)
+            return Transport.PORT;
+
+        if (channel != null)
+            return Transport.CALLBACK;
+
+        return Transport.SCRIPT;
+    }
+
+    /**
+     * Set the events the JS side has listeners for. Other events are only
+     * logged to be replayed on resume but not delivered. Activate,
+     * deactivate and failure are always delivered, as they keep the active
+     * state of the JS side up to date.
+     *
+     * @param mask Bitset of the subscribed events.
+     */
+    void setInterest (int mask)
+    {
+        interest = mask | STATE_EVENTS;
+    }
+
+    /**
+     * Queue the event for delivery with the next batch.
+     *
+     * @param event   The event to fire.
+     * @param message Optional message passed to the listeners.
+     */
+    synchronized void dispatch (Event event, String message)
+    {
+        long seq = ring.add(event, message);
+        int last = queued - 1;
+
+        if ((interest & event.bit) == 0)
+        {
+            Metrics.count("events.skipped");
+            return;
+        }
+
+        if (queued > 0 && event != Event.FAILURE)
+        {
+            if (queuedEvents[last] == event)
+            {
+                ring.discard(queuedSeqs[last]);
+                queuedMessages[last] = message;
+                queuedSeqs[last]     = seq;
+                Metrics.count("events.merged");
+                return;
+            }
+
+            if (event.isToggle && queuedEvents[last].isToggle)
+            {
+                ring.discard(queuedSeqs[last]);
+                ring.discard(seq);
+                queuedEvents[last]   = null;
+                queuedMessages[last] = null;
+                queued--;
+                Metrics.count("events.merged", 2);
+                return;
+            }
+        }
+
+        if (queued == 0) {
+            queuedSince = SystemClock.elapsedRealtimeNanos();
+        }
+
+        if (queued == queuedEvents.length) {
+            grow();
+        }
+
+        queuedEvents[queued]   = event;
+        queuedMessages[queued] = message;
+        queuedSeqs[queued]     = seq;
+        queued++;
+
+        if (isScheduled)
+            return;
+
+        isScheduled = true;
+
+        if (getTransport() == Transport.SCRIPT) {
+            cordova.getActivity().runOnUiThread(requestFrame);
+        } else {
+            handler.post(flushQueue);
+        }
+    }
+
+    /**
+     * Doubles the capacity of the queue.
+     */
+    private void grow()
+    {
+        int capacity = queuedEvents.length * 2;
+
+        queuedEvents   = Arrays.copyOf(queuedEvents, capacity);
+        queuedMessages = Arrays.copyOf(queuedMessages, capacity);
+        queuedSeqs     = Arrays.copyOf(queuedSeqs, capacity);
+    }
+
+    /**
+     * Empties the queue and drops the references to the messages.
+     */
+    private void clear()
+    {
+        Arrays.fill(queuedEvents, 0, queued, null);
+        Arrays.fill(queuedMessages, 0, queued, null);
+        queued = 0;
+    }
+
+    /**
+     * Flushes all queued events in one batch to the web view.
+     *
+     * @param frameTimeNanos The time in nanoseconds when the frame started.
+     */
+    @Override
+    public void doFrame (long frameTimeNanos)
+    {
+        deliverQueued();
+    }
+
+    /**
+     * Flushes all queued events in one batch to the web view. Runs on the
+     * main thread.
+     */
+    private void deliverQueued()
+    {
+        String script = null;
+
+        synchronized (this)
+        {
+            isScheduled = false;
+
+            if (queued == 0)
+                return;
+
+            Transport transport = getTransport();
+            long time = SystemClock.elapsedRealtimeNanos() - queuedSince;
+
+            if (transport == Transport.SCRIPT) {
+                script = buildScript();
+            } else {
+                send(transport);
+            }
+
+            Metrics.record(transport.metric, time / 1000000);
+            Metrics.count("events.delivered", queued);
+            Metrics.count("events.flushes");
+            clear();
+        }
+
+        if (script != null) {
+            webView.loadUrl(script);
+        }
+    }
+
+    /**
+     * Delivers the queued events right away through the callback. The script
+     * fallback needs the UI thread and is skipped. Used to drain the queue on
+     * shutdown.
+     */
+    synchronized void flush()
+    {
+        if (queued == 0 || channel == null)
+            return;
+
+        send(Transport.CALLBACK);
+
+        Metrics.count("events.delivered", queued);
+        Metrics.count("events.flushes");
+        clear();
+    }
+
+    /**
+     * Sends the event right away through the callback, bypassing the queue
+     * and the log. Used for transient events like the heartbeat which must
+     * not wait for the next frame.
+     *
+     * @param event   The event to fire.
+     * @param message Optional message passed to the listeners.
+     *
+     * @return false if there's no listener or no callback to deliver to.
+     */
+    synchronized boolean post (Event event, Object message)
+    {
+        if ((interest & event.bit) == 0 || channel == null)
+            return false;
+
+        StringBuilder json = beginBatch(Transport.CALLBACK);
+
+        EventSerializer.appendEvent(json, 0, event.json, message);
+        deliver(Transport.CALLBACK, EventSerializer.endBatch(json));
+
+        Metrics.count("events.posted");
+
+        return true;
+    }
+
+    /**
+     * Sends the queued events as one message through the port or channel.
+     * The batch gets written as JSON into the reused buffer, the string is
+     * the only allocation.
+     *
+     * @param transport The transport to use, either PORT or CALLBACK.
+     */
+    private void send (Transport transport)
+    {
+        StringBuilder json = beginBatch(transport);
+
+        for (int i = 0; i < queued; i++)
+        {
+            if (i > 0) {
+                json.append(',');
+            }
+
+            EventSerializer.appendEvent(json, queuedSeqs[i],
+                    queuedEvents[i].json, queuedMessages[i]);
+        }
+
+        deliver(transport, EventSerializer.endBatch(json));
+    }
+
+    /**
+     * Sends the batch through the port or channel.
+     *
+     * @param transport The transport to use, either PORT or CALLBACK.
+     * @param batch     The batch as JSON.
+     */
+    @TargetApi(M)
+    private void deliver (Transport transport, String batch)
+    {
+        if (transport == Transport.PORT) {
+            port.postMessage(new WebMessage(batch));
+            return;
+        }
+
+        PluginResult result = new PluginResult(Status.OK, batch);
+        result.setKeepCallback(true);
+
+        channel.sendPluginResult(result);
+    }
+
+    /**
+     * Resets the buffer and writes the head of the batch up to the list of
+     * events.
+     *
+     * @param transport The transport the batch gets delivered through.
+     */
+    private StringBuilder beginBatch (Transport transport)
+    {
+        return EventSerializer.beginBatch(buffer, transport.json,
+                System.currentTimeMillis());
+    }
+
+    /**
+     * Builds the script to inject the queued events into the web view.
+     */
+    private String buildScript()
+    {
+        buffer.setLength(0);
+        buffer.append(JS_SCHEME);
+
+        for (int i = 0; i < queued; i++)
+        {
+            EventSerializer.appendScript(buffer, JS_NAMESPACE, queuedSeqs[i],
+                    queuedEvents[i].script, queuedMessages[i]);
+        }
+
+        return buffer.toString();
+    }
+
+    /**
+     * Returns all events fired after the given one in a single batch.
+     *
+     * @param since The sequence number of the last event known by JS or -1
+     *              to get the latest sequence number only.
+     */
+    JSONObject drain (long since)
+    {
+        JSONObject batch = new JSONObject();
+        JSONArray events = since < 0 ? new JSONArray() : ring.since(since);
+
+        try {
+            batch.put("transport", "drain");
+            batch.put("time", System.currentTimeMillis());
+            batch.put("seq", ring.getSeq());
+            batch.put("events", events);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        return batch;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.os.SystemClock;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import de.appplant.cordova.plugin.background.BackgroundMode.Event;
+
+/**
+ * Fixed-size log of the latest events. Each event gets a sequence number and
+ * the uptime when it was fired, so that the JS side can replay the events it
+ * missed while its timers were paused.
+ */
+class EventRing {
+
+    // Number of events kept in memory
+    private static final int CAPACITY = 64;
+
+    // Sequence number of each slot
+    private final long[] seqs = new long[CAPACITY];
+
+    // Uptime in ms of each slot
+    private final long[] times = new long[CAPACITY];
+
+    // Event type of each slot
+    private final Event[] events = new Event[CAPACITY];
+
+    // Message of each slot
+    private final String[] messages = new String[CAPACITY];
+
+    // Flag of each slot indicates if the event got merged away
+    private final boolean[] discarded = new boolean[CAPACITY];
+
+    // Sequence number of the last added event
+    private long seq = 0;
+
+    /**
+     * Adds the event to the log and overwrites the oldest one if full.
+     *
+     * @param event   The fired event.
+     * @param message Optional message of the event.
+     *
+     * @return The sequence number of the event.
+     */
+    synchronized long add (Event event, String message)
+    {
+        int slot = (int) (++seq % CAPACITY);
+
+        seqs[slot]      = seq;
+        times[slot]     = SystemClock.elapsedRealtime();
+        events[slot]    = event;
+        messages[slot]  = message;
+        discarded[slot] = false;
+
+        return seq;
+    }
+
+    /**
+     * Marks the event as merged away, so that it won't be replayed.
+     *
+     * @param seq The sequence number of the event.
+     */
+    synchronized void discard (long seq)
+    {
+        int slot = (int) (seq % CAPACITY);
+
+        if (seqs[slot] == seq) {
+            discarded[slot] = true;
+        }
+    }
+
+    /**
+     * Returns the sequence number of the latest event.
+     */
+    synchronized long getSeq()
+    {
+        return seq;
+    }
+
+    /**
+     * Returns all events newer than the given sequence number, except the
+     * ones merged away.
+     *
+     * @param since The sequence number of the last event known.
+     *
+     * @return List of events ordered by their sequence number.
+     */
+    synchronized JSONArray since (long since)
+    {
+        JSONArray list = new JSONArray();
+        long first     = Math.max(since + 1, seq - CAPACITY + 1);
+
+        try {
+            for (long i = Math.max(first, 1); i <= seq; i++)
+            {
+                int slot = (int) (i % CAPACITY);
+
+                if (!discarded[slot]) {
+                    list.put(toJSON(slot));
+                }
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        return list;
+    }
+
+    /**
+     * Converts the event of the given slot into a JSON dict.
+     *
+     * @param slot The slot of the event.
+     */
+    private JSONObject toJSON (int slot) throws JSONException
+    {
+        JSONObject obj = new JSONObject();
+
+        obj.put("seq", seqs[slot]);
+        obj.put("time", times[slot]);
+        obj.put("event", events[slot].type);
+        obj.put("message", messages[slot] != null ? messages[slot] : JSONObject.NULL);
+
+        return obj;
+    }
+}
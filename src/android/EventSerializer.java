@@ -0,0 +1,180 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+
+package de.appplant.cordova.plugin.background;
+
+/**
+ * Writes the batches and scripts delivered by the event dispatcher straight
+ * into a reused buffer. Compared to building them through org.json, only the
+ * final string gets allocated. Doesn't depend on the Android framework so
+ * that it can be benchmarked off-device.
+ */
+final class EventSerializer {
+
+    // Closes the list of events and the batch
+    private static final String BATCH_END = "]}";
+
+    // Closes the call of the script
+    private static final String SCRIPT_END = ");";
+
+    // No instances, static helpers only
+    private EventSerializer() {}
+
+    /**
+     * Precompiles the head of a batch, only the time and events are missing.
+     *
+     * @param transport The name of the transport.
+     */
+    static String head (String transport)
+    {
+        return "{\"transport\":\"" + transport + "\",\"time\":";
+    }
+
+    /**
+     * Precompiles the JSON fields of an event, only the message is missing.
+     *
+     * @param type The name of the event as known by the JS side.
+     */
+    static String fields (String type)
+    {
+        return "\"event\":\"" + type + "\",\"message\":";
+    }
+
+    /**
+     * Resets the buffer and writes the head of the batch up to the list of
+     * events.
+     *
+     * @param json The buffer to write to.
+     * @param head The precompiled head, see head().
+     * @param time The time of the batch in ms.
+     */
+    static StringBuilder beginBatch (StringBuilder json, String head, long time)
+    {
+        json.setLength(0);
+
+        return json.append(head).append(time).append(",\"events\":[");
+    }
+
+    /**
+     * Writes the event as a JSON dict.
+     *
+     * @param json    The buffer to write to.
+     * @param seq     The sequence number or 0 if not logged.
+     * @param fields  The precompiled fields of the event, see fields().
+     * @param message Optional message of the event.
+     */
+    static void appendEvent (StringBuilder json, long seq, String fields,
+                             Object message)
+    {
+        json.append('{');
+
+        if (seq > 0) {
+            json.append("\"seq\":").append(seq).append(',');
+        }
+
+        json.append(fields);
+
+        if (message instanceof String) {
+            appendQuoted(json, (String) message);
+        } else {
+            json.append(message);
+        }
+
+        json.append('}');
+    }
+
+    /**
+     * Closes the batch and returns it as a string.
+     *
+     * @param json The buffer holding the batch.
+     */
+    static String endBatch (StringBuilder json)
+    {
+        return json.append(BATCH_END).toString();
+    }
+
+    /**
+     * Writes the statements which fire the event within the web view.
+     *
+     * @param js        The buffer to write to.
+     * @param namespace The namespace of the JS interface.
+     * @param seq       The sequence number of the event.
+     * @param script    The precompiled call, only the message is missing.
+     * @param message   Optional message of the event.
+     */
+    static void appendScript (StringBuilder js, String namespace, long seq,
+                              String script, String message)
+    {
+        js.append(namespace).append("._lastSeq=").append(seq).append(';')
+          .append(script);
+
+        if (message != null) {
+            appendQuoted(js, message);
+        } else {
+            js.append("null");
+        }
+
+        js.append(SCRIPT_END);
+    }
+
+    /**
+     * Writes the string as a quoted JS string literal. Unlike JSONObject.quote
+     * it writes straight into the buffer.
+     *
+     * @param js   The buffer to write to.
+     * @param text The string to quote.
+     */
+    static void appendQuoted (StringBuilder js, String text)
+    {
+        js.append('"');
+
+        for (int i = 0, len = text.length(); i < len; i++)
+        {
+            char c = text.charAt(i);
+
+            switch (c)
+            {
+                case '"':
+                case '\\':
+                    js.append('\\').append(c);
+                    break;
+                case '\n':
+                    js.append("\\n");
+                    break;
+                case '\r':
+                    js.append("\\r");
+                    break;
+                case '\t':
+                    js.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        js.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        js.append(c);
+                    }
+            }
+        }
+
+        js.append('"');
+    }
+}
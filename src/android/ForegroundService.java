@@ -23,24 +23,20 @@ package de.appplant.cordova.plugin.background;
 
 
 //import androidx.core.app.ServiceCompat;
-import android.annotation.SuppressLint;
-import android.annotation.TargetApi;
 import android.app.Notification;
 import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.app.Service;
-import android.content.Context;
 import android.content.Intent;
-import android.content.res.Resources;
 import android.os.Binder;
-import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.PowerManager;
-import android.app.NotificationChannel;
+import android.os.SystemClock;
 
 import org.json.JSONObject;
 
-import static android.os.PowerManager.PARTIAL_WAKE_LOCK;
+import de.appplant.cordova.plugin.background.NotificationFactory.Snapshot;
 
 /**
  * Puts the service in a foreground state, where the system considers it to be
@@ -52,22 +48,59 @@ public class ForegroundService extends Service {
     // Fixed ID for the 'foreground' notification
     public static final int NOTIFICATION_ID = -574543954;
 
-    // Default title of the background notification
-    private static final String NOTIFICATION_TITLE =
-            "App is running in background";
+    // Binder given to clients
+    private final IBinder binder = new ForegroundBinder();
 
-    // Default text of the background notification
-    private static final String NOTIFICATION_TEXT =
-            "Doing heavy tasks.";
+    // Builds the notification, reused for each update
+    private final NotificationFactory notifications = new NotificationFactory(this);
 
-    // Default icon of the background notification
-    private static final String NOTIFICATION_ICON = "icon";
+    // Decides when to hold the partial wake lock to prevent the app from
+    // going to sleep when locked
+    private WakeLockPolicy wakeLockPolicy;
 
-    // Binder given to clients
-    private final IBinder binder = new ForegroundBinder();
+    // Used to schedule the transitions of the wake lock policy
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Limits the rate of the notification updates
+    private final NotificationScheduler updates =
+            new NotificationScheduler(handler, this::postNotification);
+
+    // Snapshot of the latest notification posted or scheduled to post
+    private volatile Snapshot posted;
+
+    // Snapshot of the settings with the placeholders not filled in yet
+    private Snapshot template;
+
+    // Fills in the placeholders of the notification again
+    private final Runnable refresh = this::refresh;
+
+    // Uptime in ms when the service got created
+    private long startedAt;
+
+    // Number of tasks the executor had completed when the service got created
+    private long completedAtStart;
+
+    // Derives the throttle level from the battery and thermal state
+    private ThrottleController throttle;
 
-    // Partial wake lock to prevent the app from going to sleep when locked
-    private PowerManager.WakeLock wakeLock;
+    // Notified about the events of the service
+    private Listener listener;
+
+    // Runs the periodic jobs through alarms allowed while idle
+    private MaintenanceScheduler scheduler;
+
+    // Number of maintenance ticks since the service got created
+    private long ticks = 0;
+
+    // Receives the events of the service to forward them to the JS side
+    interface Listener
+    {
+        // Called once the service fired an event
+        void onEvent (BackgroundMode.Event event, String message);
+
+        // Called once the throttle level has changed
+        void onThrottle (ThrottleController.Level level);
+    }
 
     /**
      * Allow clients to call on to the service.
@@ -99,6 +132,9 @@ public class ForegroundService extends Service {
     public void onCreate()
     {
         super.onCreate();
+        Metrics.count("service.starts");
+        Metrics.startTimer("service.uptime");
+        BackgroundMode.restoreSettings(this);
         keepAwake();
     }
 
@@ -110,36 +146,235 @@ public class ForegroundService extends Service {
     {
         super.onDestroy();
         sleepWell();
+        Metrics.count("service.stops");
+        Metrics.stopTimer("service.uptime");
     }
 
     /**
      * Prevent Android from stopping the background service automatically.
+     * A null intent means the service got restarted after being killed. It
+     * stops itself if the plugin wasn't active anymore, otherwise the
+     * executor resumes the work left in its journal.
      */
     @Override
-    public int onStartCommand (Intent intent, int flags, int startId) {
+    public int onStartCommand (Intent intent, int flags, int startId)
+    {
+        if (intent == null && !(SettingsStore.isEnabled(this)
+                && SettingsStore.isActive(this))) {
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+
+        if (intent == null) {
+            Metrics.gauge("service.restarts", SettingsStore.addRestart(this));
+            TaskExecutor.getInstance(this);
+        }
+
         return START_STICKY;
     }
 
     /**
      * Put the service in a foreground state to prevent app from being killed
-     * by the OS.
+     * by the OS. The notification shows the settings of the last update, if
+     * the service got restarted after such.
      */
-    @SuppressLint("WakelockTimeout")
     private void keepAwake()
     {
         JSONObject settings = BackgroundMode.getSettings();
-        boolean isSilent    = settings.optBoolean("silent", false);
+        JSONObject update   = SettingsStore.loadUpdate(this);
+        JSONObject content  = update != null ? update : settings;
+        boolean isSilent    = content.optBoolean("silent", false);
+
+        startedAt        = SystemClock.elapsedRealtime();
+        completedAtStart = getCompleted();
+        notifications.setStartTime(System.currentTimeMillis());
 
         if (!isSilent) {
-            startForeground(NOTIFICATION_ID, makeNotification());
+            template = new Snapshot(content);
+            posted   = render(template);
+            startForeground(NOTIFICATION_ID, notifications.build(posted));
+            scheduleRefresh();
         }
 
-        PowerManager pm = (PowerManager)getSystemService(POWER_SERVICE);
+        scheduler = new MaintenanceScheduler(this);
+        throttle  = new ThrottleController(this, this::onThrottle);
+        throttle.start();
 
-        wakeLock = pm.newWakeLock(
-                PARTIAL_WAKE_LOCK, "backgroundmode:wakelock");
+        applyWakeLockPolicy();
+
+        BackgroundTasks.getInstance().setListener(this::onTasksChanged);
+
+        if (settings.optBoolean("taskProgress", false)) {
+            TaskExecutor.getInstance(this).setProgressListener(
+                    (done, total) -> setProgress(total, done, false));
+        }
 
-        wakeLock.acquire();
+        long interval = settings.optLong("tickInterval", 0);
+
+        if (interval > 0) {
+            scheduler.register("tick", interval, this::onTick);
+        }
+    }
+
+    /**
+     * Called by the scheduler once a maintenance tick is due. Runs within
+     * the alarm receiver, so the lease is taken before the OS lets the CPU
+     * sleep again. Keeps the CPU awake for a short while and lets the JS
+     * side do its work.
+     */
+    private void onTick()
+    {
+        WakeLockLeases leases = WakeLockLeases.getInstance(this);
+        long hold = BackgroundMode.getSettings().optLong("tickWakeTime", 10000);
+        int id    = leases.acquire("tick", hold);
+
+        handler.postDelayed(() -> leases.release(id), hold);
+        ticks++;
+
+        if (listener != null) {
+            listener.onEvent(BackgroundMode.Event.TICK, String.valueOf(ticks));
+        }
+    }
+
+    /**
+     * Set the listener to notify about the events of the service. The
+     * current throttle level gets reported right away if there's any.
+     *
+     * @param listener The listener or null to remove it.
+     */
+    void setListener (Listener listener)
+    {
+        handler.post(() -> {
+            this.listener = listener;
+
+            if (throttle != null && throttle.getLevel() != ThrottleController.Level.NONE) {
+                onThrottle(throttle.getLevel());
+            }
+        });
+    }
+
+    /**
+     * Called on the main thread once the throttle level has changed.
+     *
+     * @param level The new throttle level.
+     */
+    private void onThrottle (ThrottleController.Level level)
+    {
+        if (wakeLockPolicy != null) {
+            applyWakeLockPolicy();
+        }
+
+        if (scheduler != null) {
+            scheduler.setScale(level.scale);
+        }
+
+        if (listener != null) {
+            listener.onThrottle(level);
+        }
+    }
+
+    /**
+     * (Re)creates the wake lock policy for the current throttle level. The
+     * configured policy gets replaced by a more frugal one under moderate
+     * or severe throttling unless the throttle setting is turned off.
+     */
+    private void applyWakeLockPolicy()
+    {
+        JSONObject settings = BackgroundMode.getSettings();
+        String mode         = settings.optString("wakeLock", "indefinite");
+        PowerManager pm     = (PowerManager)getSystemService(POWER_SERVICE);
+
+        if (settings.optBoolean("throttle", true))
+        {
+            switch (throttle.getLevel())
+            {
+                case SEVERE:
+                    if (!mode.equals("tasks")) mode = "lease";
+                    break;
+                case MODERATE:
+                    if (mode.equals("indefinite")) mode = "duty";
+                    break;
+            }
+        }
+
+        if (wakeLockPolicy != null)
+        {
+            if (wakeLockPolicy.mode.name().equalsIgnoreCase(mode))
+                return;
+
+            wakeLockPolicy.stop();
+        }
+
+        wakeLockPolicy = WakeLockPolicy.create(mode, settings, pm, handler, scheduler);
+        wakeLockPolicy.setWorkSource(this::hasPendingWork);
+        wakeLockPolicy.start();
+
+        Metrics.gauge("wakeLock.mode", wakeLockPolicy.mode.name().toLowerCase());
+    }
+
+    /**
+     * If there's pending work in background that needs the CPU.
+     */
+    private boolean hasPendingWork()
+    {
+        return WakeLockLeases.getInstance(this).hasActive()
+                || BackgroundTasks.getInstance().count() > 0
+                || getPending() > 0;
+    }
+
+    /**
+     * Returns the number of native tasks completed within this process.
+     * Doesn't create the executor if the app never used it.
+     */
+    private long getCompleted()
+    {
+        TaskExecutor executor = TaskExecutor.peekInstance();
+
+        return executor != null ? executor.getCompleted() : 0;
+    }
+
+    /**
+     * Returns the number of native tasks waiting or running. Doesn't create
+     * the executor if the app never used it.
+     */
+    private int getPending()
+    {
+        TaskExecutor executor = TaskExecutor.peekInstance();
+
+        return executor != null ? executor.getPending() : 0;
+    }
+
+    /**
+     * Called on the main thread once a background task began or ended.
+     *
+     * @param added If a task began or ended.
+     */
+    private void onTasksChanged (boolean added)
+    {
+        if (wakeLockPolicy == null)
+            return;
+
+        if (added) {
+            wakeLockPolicy.onWorkAdded();
+        } else {
+            wakeLockPolicy.onWorkDone();
+        }
+    }
+
+    /**
+     * Called once new work is pending in background.
+     */
+    void onWorkAdded()
+    {
+        handler.post(() -> onTasksChanged(true));
+    }
+
+    /**
+     * Called once some work in background has been done.
+     */
+    void onWorkDone()
+    {
+        handler.post(() -> onTasksChanged(false));
     }
 
 //  private void keepAwake() {
@@ -168,177 +403,179 @@ public class ForegroundService extends Service {
 
  
 
+    /**
+     * Posts the pending notification update right away instead of waiting
+     * for the main thread.
+     */
+    void drainNotifications()
+    {
+        updates.drain();
+    }
+
     /**
      * Stop background mode.
      */
     private void sleepWell()
     {
+        TaskExecutor executor = TaskExecutor.peekInstance();
+
+        BackgroundTasks.getInstance().setListener(null);
+
+        if (executor != null) {
+            executor.setProgressListener(null);
+        }
+
+        handler.removeCallbacks(refresh);
+        updates.cancel();
+
+        if (throttle != null) {
+            throttle.stop();
+            throttle = null;
+        }
+
+        if (scheduler != null) {
+            scheduler.stop();
+            scheduler = null;
+        }
+
+        listener = null;
+
         stopForeground(true);
         getNotificationManager().cancel(NOTIFICATION_ID);
 
-        if (wakeLock != null) {
-            wakeLock.release();
-            wakeLock = null;
+        if (wakeLockPolicy != null) {
+            wakeLockPolicy.stop();
+            wakeLockPolicy = null;
         }
     }
 
     /**
-     * Create a notification as the visible part to be able to put the service
-     * in a foreground state by using the default settings.
+     * Update the notification. Updates are coalesced and posted at most once
+     * per notificationInterval ms. Updates which don't change the rendering
+     * of the notification are skipped.
+     *
+     * @param settings The config settings
      */
-    private Notification makeNotification()
+    protected synchronized void updateNotification (JSONObject settings)
     {
-        return makeNotification(BackgroundMode.getSettings());
+        template = new Snapshot(settings).withProgressOf(template);
+
+        schedule(render(template));
+        scheduleRefresh();
     }
 
     /**
-     * Create a notification as the visible part to be able to put the service
-     * in a foreground state.
+     * Update the progress bar of the notification. The reused builder only
+     * changes the progress, the other settings stay as they are.
      *
-     * @param settings The config settings
+     * @param max           The max value, 0 to remove the bar.
+     * @param current       The current value.
+     * @param indeterminate If the progress is indeterminate.
      */
-    private Notification makeNotification (JSONObject settings)
+    synchronized void setProgress (int max, int current, boolean indeterminate)
     {
-        // use channelid for Oreo and higher
-        String CHANNEL_ID = "cordova-plugin-background-mode-id";
-        if(Build.VERSION.SDK_INT >= 26){
-        // The user-visible name of the channel.
-        CharSequence name = "cordova-plugin-background-mode";
-        // The user-visible description of the channel.
-        String description = "cordova-plugin-background-moden notification";
-
-        int importance = NotificationManager.IMPORTANCE_LOW;
-
-        NotificationChannel mChannel = new NotificationChannel(CHANNEL_ID, name,importance);
-
-        // Configure the notification channel.
-        mChannel.setDescription(description);
-
-        getNotificationManager().createNotificationChannel(mChannel);
-        }
-        String title    = settings.optString("title", NOTIFICATION_TITLE);
-        String text     = settings.optString("text", NOTIFICATION_TEXT);
-        boolean bigText = settings.optBoolean("bigText", false);
-
-        Context context = getApplicationContext();
-        String pkgName  = context.getPackageName();
-        Intent intent   = context.getPackageManager()
-                .getLaunchIntentForPackage(pkgName);
-
-        Notification.Builder notification = new Notification.Builder(context)
-                .setContentTitle(title)
-                .setContentText(text)
-                .setOngoing(true)
-                .setSmallIcon(getIconResId(settings));
-
-        if(Build.VERSION.SDK_INT >= 26){
-                   notification.setChannelId(CHANNEL_ID);
-        }
-
-        if (settings.optBoolean("hidden", true)) {
-            notification.setPriority(Notification.PRIORITY_MIN);
-        }
+        if (template == null)
+            return;
 
-        if (bigText || text.contains("\n")) {
-            notification.setStyle(
-                    new Notification.BigTextStyle().bigText(text));
-        }
+        template = template.withProgress(max, current, indeterminate);
+        schedule(render(template));
+    }
 
-        setColor(notification, settings);
+    /**
+     * Fills in the placeholders of the notification again and schedules the
+     * next refresh.
+     */
+    private synchronized void refresh()
+    {
+        if (template == null)
+            return;
 
-        if (intent != null && settings.optBoolean("resume")) {
-            intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_SINGLE_TOP);
-            PendingIntent contentIntent = PendingIntent.getActivity(
-                    context, NOTIFICATION_ID, intent,
-                   PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+        schedule(render(template));
+        scheduleRefresh();
+    }
 
+    /**
+     * Schedules the next refresh if the notification has placeholders.
+     */
+    private void scheduleRefresh()
+    {
+        handler.removeCallbacks(refresh);
 
-            notification.setContentIntent(contentIntent);
-        }
+        if (template == null || !template.isTemplate())
+            return;
 
-        return notification.build();
+        handler.postDelayed(refresh, BackgroundMode.getSettings()
+                .optLong("templateInterval", 60000));
     }
 
     /**
-     * Update the notification.
+     * Returns the snapshot with the placeholders filled in.
      *
-     * @param settings The config settings
+     * @param template The snapshot of the settings.
      */
-    protected void updateNotification (JSONObject settings)
+    private Snapshot render (Snapshot template)
     {
-        boolean isSilent = settings.optBoolean("silent", false);
-
-        if (isSilent) {
-            stopForeground(true);
-            return;
-        }
-
-        Notification notification = makeNotification(settings);
-        getNotificationManager().notify(NOTIFICATION_ID, notification);
+        if (!template.isTemplate())
+            return template;
 
+        return template.withTexts(fill(template.title), fill(template.text));
     }
 
     /**
-     * Retrieves the resource ID of the app icon.
+     * Fills in the placeholders {elapsed}, {processed} and {pending}.
      *
-     * @param settings A JSON dict containing the icon name.
+     * @param text The text with the placeholders.
      */
-    private int getIconResId (JSONObject settings)
+    private String fill (String text)
     {
-        String icon = settings.optString("icon", NOTIFICATION_ICON);
+        if (text.indexOf('{') == -1)
+            return text;
 
-        int resId = getIconResId(icon, "mipmap");
-
-        if (resId == 0) {
-            resId = getIconResId(icon, "drawable");
-        }
+        long minutes = (SystemClock.elapsedRealtime() - startedAt) / 60000;
 
-        return resId;
+        return text
+                .replace("{elapsed}", minutes < 60 ? minutes + " min"
+                        : minutes / 60 + " h " + minutes % 60 + " min")
+                .replace("{processed}",
+                        String.valueOf(getCompleted() - completedAtStart))
+                .replace("{pending}", String.valueOf(getPending()));
     }
 
     /**
-     * Retrieve resource id of the specified icon.
+     * Schedules the notification for the state unless it's already posted
+     * or scheduled to post.
      *
-     * @param icon The name of the icon.
-     * @param type The resource type where to look for.
-     *
-     * @return The resource id or 0 if not found.
+     * @param state The snapshot of the settings
      */
-    private int getIconResId (String icon, String type)
+    private synchronized void schedule (Snapshot state)
     {
-        Resources res  = getResources();
-        String pkgName = getPackageName();
-
-        int resId = res.getIdentifier(icon, type, pkgName);
+        long interval = BackgroundMode.getSettings()
+                .optLong("notificationInterval", 200);
 
-        if (resId == 0) {
-            resId = res.getIdentifier("icon", type, pkgName);
+        if (state.equals(posted))
+        {
+            Metrics.count("notification.unchanged");
+            return;
         }
 
-        return resId;
+        posted = state;
+        updates.submit(state, interval);
     }
 
     /**
-     * Set notification color if its supported by the SDK.
+     * Post the notification for the state.
      *
-     * @param notification A Notification.Builder instance
-     * @param settings A JSON dict containing the color definition (red: FF0000)
+     * @param state The snapshot of the settings
      */
-    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
-    private void setColor (Notification.Builder notification, JSONObject settings)
+    private void postNotification (Snapshot state)
     {
-
-        String hex = settings.optString("color", null);
-
-        if (Build.VERSION.SDK_INT < 21 || hex == null)
+        if (state.silent) {
+            stopForeground(true);
             return;
-
-        try {
-            int aRGB = Integer.parseInt(hex, 16) + 0xFF000000;
-            notification.setColor(aRGB);
-        } catch (Exception e) {
-            e.printStackTrace();
         }
+
+        Notification notification = notifications.build(state);
+        getNotificationManager().notify(NOTIFICATION_ID, notification);
     }
 
     /**
@@ -0,0 +1,174 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+/**
+ * Native tick source running on its own thread, as the timers of a hidden
+ * web view get throttled. A beat is only delivered once the JS side has
+ * acknowledged the previous one. Beats in between are coalesced and their
+ * number is delivered along with the next one.
+ *
+ * The heartbeat does not wake the CPU, it pauses while the device sleeps.
+ */
+class Heartbeat {
+
+    // Delivers the beats to the JS side
+    interface Sink
+    {
+        /**
+         * @param beats Number of beats since the last delivery.
+         *
+         * @return false if the beat could not be delivered.
+         */
+        boolean onBeat (long beats);
+    }
+
+    // Delivers the beats
+    private final Sink sink;
+
+    // Fires the next beat
+    private final Runnable beat = this::beat;
+
+    // Thread the beats are generated on
+    private HandlerThread thread;
+
+    // Handler of the thread
+    private Handler handler;
+
+    // Interval between two beats in ms
+    private long interval;
+
+    // Factor the interval gets multiplied with
+    private int scale = 1;
+
+    // Uptime in ms when the next beat is due
+    private long nextAt;
+
+    // Number of beats not delivered yet
+    private long pending = 0;
+
+    // Flag indicates if the last delivered beat is not acknowledged yet
+    private boolean isAwaitingAck = false;
+
+    /**
+     * Creates a heartbeat delivering to the given sink.
+     *
+     * @param sink Delivers the beats.
+     */
+    Heartbeat (Sink sink)
+    {
+        this.sink = sink;
+    }
+
+    /**
+     * Start to beat at the given interval. Does nothing if already running.
+     *
+     * @param interval The interval in ms.
+     */
+    synchronized void start (long interval)
+    {
+        if (thread != null || interval <= 0)
+            return;
+
+        this.interval = interval;
+        isAwaitingAck = false;
+
+        thread = new HandlerThread("backgroundmode-heartbeat");
+        thread.start();
+
+        handler = new Handler(thread.getLooper());
+        nextAt  = SystemClock.uptimeMillis() + interval * scale;
+
+        handler.postAtTime(beat, nextAt);
+        Metrics.gauge("heartbeat.interval", interval * scale);
+    }
+
+    /**
+     * Stop to beat and quit the thread.
+     */
+    synchronized void stop()
+    {
+        if (thread == null)
+            return;
+
+        handler.removeCallbacks(beat);
+        thread.quitSafely();
+
+        thread  = null;
+        handler = null;
+        pending = 0;
+    }
+
+    /**
+     * Called once the JS side has consumed the last beat, or to forget about
+     * it after the web view got reloaded.
+     */
+    synchronized void ack()
+    {
+        isAwaitingAck = false;
+    }
+
+    /**
+     * Stretch the interval, e.g. while being throttled. Applies from the
+     * next beat on.
+     *
+     * @param scale The factor the interval gets multiplied with.
+     */
+    synchronized void setScale (int scale)
+    {
+        if (scale < 1)
+            return;
+
+        this.scale = scale;
+
+        if (thread != null) {
+            Metrics.gauge("heartbeat.interval", interval * scale);
+        }
+    }
+
+    /**
+     * Delivers the beat unless the last one is not acknowledged yet and
+     * schedules the next one.
+     */
+    private synchronized void beat()
+    {
+        if (thread == null)
+            return;
+
+        pending++;
+
+        if (isAwaitingAck) {
+            Metrics.count("heartbeat.coalesced");
+        } else if (sink.onBeat(pending)) {
+            Metrics.count("heartbeat.delivered");
+            isAwaitingAck = true;
+            pending       = 0;
+        }
+
+        nextAt = Math.max(nextAt + interval * scale, SystemClock.uptimeMillis());
+        handler.postAtTime(beat, nextAt);
+    }
+}
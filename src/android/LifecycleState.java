@@ -0,0 +1,223 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+
+package de.appplant.cordova.plugin.background;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lifecycle state of the plugin packed into a single atomic word, made of
+ * the bind state of the service and a few flags. The flags are written by
+ * the UI thread as well as by the WebCore thread. The bind state only moves
+ * on the UI thread, next to the bind and unbind calls it stands for.
+ */
+final class LifecycleState {
+
+    // States of the binding between the activity and the service
+    enum BindState { IDLE, BINDING, BOUND, UNBINDING }
+
+    // Performs the calls behind the start and stop transitions
+    interface Binding
+    {
+        // Binds and starts the service, false if the bind failed
+        boolean bind();
+
+        // Unbinds and stops the service
+        void unbind();
+    }
+
+    // Flag indicates if the app is in background or foreground
+    static final int IN_BACKGROUND = 0x04;
+
+    // Flag indicates if the plugin is enabled or disabled
+    static final int ENABLED = 0x08;
+
+    // Flag indicates if the start of the service is scheduled
+    static final int START_PENDING = 0x10;
+
+    // Flag indicates if the stop of the service is scheduled
+    static final int STOP_PENDING = 0x20;
+
+    // Lookup table to unpack the bind state
+    private static final BindState[] BIND_STATES = BindState.values();
+
+    // Bits of the packed state holding the bind state
+    private static final int BIND_MASK = 0x03;
+
+    // Packed state made of the bind state and the flags above
+    private final AtomicInteger state = new AtomicInteger(0);
+
+    /**
+     * If the flag is set within the packed state.
+     *
+     * @param flag The flag to test for.
+     */
+    boolean isSet (int flag)
+    {
+        return (state.get() & flag) != 0;
+    }
+
+    /**
+     * Set or clear the flag within the packed state.
+     *
+     * @param flag The flag to change.
+     * @param on   The new value of the flag.
+     *
+     * @return The previous value of the flag.
+     */
+    boolean setFlag (int flag, boolean on)
+    {
+        int prev, next;
+
+        do {
+            prev = state.get();
+            next = on ? prev | flag : prev & ~flag;
+        } while (prev != next && !state.compareAndSet(prev, next));
+
+        return (prev & flag) != 0;
+    }
+
+    /**
+     * Returns the bind state unpacked from the state word.
+     */
+    BindState getBindState()
+    {
+        return BIND_STATES[state.get() & BIND_MASK];
+    }
+
+    /**
+     * Moves from IDLE to BINDING if enabled and binds the service. Falls
+     * back to IDLE if the bind failed. Must be called on the UI thread.
+     *
+     * @param binding Performs the bind.
+     *
+     * @return true if the service is binding.
+     */
+    boolean start (Binding binding)
+    {
+        boolean isBinding = false;
+
+        setFlag(START_PENDING, false);
+
+        if (!compareAndSetBind(BindState.IDLE, BindState.BINDING, ENABLED))
+            return false;
+
+        try {
+            isBinding = binding.bind();
+        } finally {
+            if (!isBinding) {
+                compareAndSetBind(BindState.BINDING, BindState.IDLE);
+            }
+        }
+
+        return isBinding;
+    }
+
+    /**
+     * Moves from BOUND or BINDING to UNBINDING, unbinds the service and
+     * ends up in IDLE. Must be called on the UI thread.
+     *
+     * @param binding Performs the unbind.
+     *
+     * @return false if there was nothing to unbind.
+     */
+    boolean stop (Binding binding)
+    {
+        setFlag(STOP_PENDING, false);
+
+        if (!compareAndSetBind(BindState.BOUND, BindState.UNBINDING)
+                && !compareAndSetBind(BindState.BINDING, BindState.UNBINDING))
+            return false;
+
+        try {
+            binding.unbind();
+        } finally {
+            compareAndSetBind(BindState.UNBINDING, BindState.IDLE);
+        }
+
+        return true;
+    }
+
+    /**
+     * Moves from BINDING to BOUND once the service is connected.
+     *
+     * @return false if the service got unbound in the meantime.
+     */
+    boolean onConnected()
+    {
+        return compareAndSetBind(BindState.BINDING, BindState.BOUND);
+    }
+
+    /**
+     * Moves from BOUND back to BINDING once the service got disconnected.
+     * The OS reconnects it on its own.
+     *
+     * @return false if the service wasn't bound.
+     */
+    boolean onDisconnected()
+    {
+        return compareAndSetBind(BindState.BOUND, BindState.BINDING);
+    }
+
+    /**
+     * Atomically move the bind state from expect to update.
+     *
+     * @param expect The expected bind state.
+     * @param update The new bind state.
+     *
+     * @return false if the bind state differs from the expected one.
+     */
+    boolean compareAndSetBind (BindState expect, BindState update)
+    {
+        return compareAndSetBind(expect, update, 0);
+    }
+
+    /**
+     * Atomically move the bind state from expect to update if all of the
+     * required flags are set.
+     *
+     * @param expect   The expected bind state.
+     * @param update   The new bind state.
+     * @param required The flags which have to be set.
+     *
+     * @return false if the bind state or the flags differ.
+     */
+    boolean compareAndSetBind (BindState expect, BindState update,
+                               int required)
+    {
+        int prev, next;
+
+        do {
+            prev = state.get();
+
+            if ((prev & BIND_MASK) != expect.ordinal())
+                return false;
+
+            if ((prev & required) != required)
+                return false;
+
+            next = (prev & ~BIND_MASK) | update.ordinal();
+        } while (!state.compareAndSet(prev, next));
+
+        return true;
+    }
+}
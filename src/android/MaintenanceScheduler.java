@@ -0,0 +1,295 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.annotation.TargetApi;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static android.app.AlarmManager.ELAPSED_REALTIME_WAKEUP;
+import static android.content.Context.ALARM_SERVICE;
+import static android.os.Build.VERSION.SDK_INT;
+import static android.os.Build.VERSION_CODES.M;
+import static android.os.Build.VERSION_CODES.S;
+import static android.os.Build.VERSION_CODES.TIRAMISU;
+
+/**
+ * Runs periodic jobs of the service through alarms which are allowed to fire
+ * while the device is idle. All jobs due within the same window are batched
+ * into a single wake-up.
+ *
+ * Exact alarms are used if the app is allowed to schedule them, otherwise
+ * the OS may defer the alarm to its next maintenance window.
+ *
+ * The alarm is delivered as a broadcast, as the OS keeps the CPU awake only
+ * while the receiver runs. The jobs therefore run within onReceive and have
+ * to take a wake lock if they need the CPU any longer.
+ */
+class MaintenanceScheduler extends BroadcastReceiver {
+
+    // Action of the broadcast sent once the alarm fires
+    private static final String ACTION = "de.appplant.cordova.plugin.background.MAINTENANCE";
+
+    // Request code of the pending intent
+    private static final int REQUEST_CODE = 0x4d41494e;
+
+    // Part of its interval a job may run early to join a wake-up
+    private static final int WINDOW_DIVISOR = 4;
+
+    // The context to create the pending intent
+    private final Context context;
+
+    // Used to schedule the alarms
+    private final AlarmManager am;
+
+    // Registered jobs by their name as [task, interval, due at]
+    private final Map<String, Object[]> jobs = new LinkedHashMap<>();
+
+    // Factor all intervals get multiplied with
+    private int scale = 1;
+
+    // Uptime in ms when the scheduled alarm should fire
+    private long alarmAt = 0;
+
+    // Flag indicates if the receiver is registered
+    private boolean isRegistered = false;
+
+    /**
+     * Creates the scheduler for the given service.
+     *
+     * @param context The service to register the receiver with.
+     */
+    MaintenanceScheduler (Context context)
+    {
+        this.context = context;
+        this.am      = (AlarmManager) context.getSystemService(ALARM_SERVICE);
+    }
+
+    /**
+     * Register a job to run periodically. A job with the same name gets
+     * replaced.
+     *
+     * @param name     The name of the job.
+     * @param interval The interval in ms.
+     * @param task     The task to run.
+     */
+    synchronized void register (String name, long interval, Runnable task)
+    {
+        long now = SystemClock.elapsedRealtime();
+
+        jobs.put(name, new Object[] { task, interval, now + interval * scale });
+        schedule();
+    }
+
+    /**
+     * Remove the job with the given name.
+     *
+     * @param name The name of the job.
+     */
+    synchronized void unregister (String name)
+    {
+        jobs.remove(name);
+        schedule();
+    }
+
+    /**
+     * Stretch the intervals of all jobs, e.g. while being throttled.
+     *
+     * @param scale The factor the intervals get multiplied with.
+     */
+    synchronized void setScale (int scale)
+    {
+        long now = SystemClock.elapsedRealtime();
+
+        if (scale < 1 || scale == this.scale)
+            return;
+
+        for (Object[] job : jobs.values())
+        {
+            long interval = (long) job[1];
+            long last     = (long) job[2] - interval * this.scale;
+
+            job[2] = Math.max(last + interval * scale, now);
+        }
+
+        this.scale = scale;
+        schedule();
+    }
+
+    /**
+     * Cancel the alarm, remove all jobs and unregister the receiver.
+     */
+    synchronized void stop()
+    {
+        jobs.clear();
+        schedule();
+
+        if (!isRegistered)
+            return;
+
+        context.unregisterReceiver(this);
+        isRegistered = false;
+    }
+
+    /**
+     * Called on the main thread once the alarm has fired. The OS holds a
+     * wake lock until this method returns.
+     */
+    @Override
+    public void onReceive (Context context, Intent intent)
+    {
+        onAlarm();
+    }
+
+    /**
+     * Runs all jobs which are due or would be due soon and schedules the
+     * next alarm.
+     */
+    private void onAlarm()
+    {
+        List<Runnable> due = new ArrayList<>();
+        long now           = SystemClock.elapsedRealtime();
+
+        synchronized (this)
+        {
+            if (alarmAt != 0) {
+                Metrics.record("maintenance.drift", Math.max(now - alarmAt, 0));
+            }
+
+            alarmAt = 0;
+
+            for (Object[] job : jobs.values())
+            {
+                long interval = (long) job[1] * scale;
+
+                if ((long) job[2] - interval / WINDOW_DIVISOR > now)
+                    continue;
+
+                job[2] = now + interval;
+                due.add((Runnable) job[0]);
+            }
+
+            schedule();
+        }
+
+        Metrics.count("maintenance.wakeups");
+        Metrics.count("maintenance.jobs", due.size());
+
+        for (Runnable task : due)
+        {
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Schedules the alarm for the next due job or cancels it if there's none.
+     */
+    private void schedule()
+    {
+        PendingIntent operation = getOperation();
+        long next = Long.MAX_VALUE;
+
+        for (Object[] job : jobs.values()) {
+            next = Math.min(next, (long) job[2]);
+        }
+
+        if (next == Long.MAX_VALUE)
+        {
+            alarmAt = 0;
+            am.cancel(operation);
+            return;
+        }
+
+        alarmAt = next;
+
+        register();
+
+        if (SDK_INT < M) {
+            am.setExact(ELAPSED_REALTIME_WAKEUP, next, operation);
+        } else {
+            setAllowWhileIdle(next, operation);
+        }
+    }
+
+    /**
+     * Schedules the alarm so that it fires even while the device is idle.
+     *
+     * @param at        The uptime in ms when to fire.
+     * @param operation The intent to deliver.
+     */
+    @TargetApi(M)
+    private void setAllowWhileIdle (long at, PendingIntent operation)
+    {
+        if (SDK_INT >= S && !am.canScheduleExactAlarms()) {
+            am.setAndAllowWhileIdle(ELAPSED_REALTIME_WAKEUP, at, operation);
+        } else {
+            am.setExactAndAllowWhileIdle(ELAPSED_REALTIME_WAKEUP, at, operation);
+        }
+    }
+
+    /**
+     * Registers the receiver for the alarm unless already done. Only the
+     * app itself can send to it.
+     */
+    @TargetApi(TIRAMISU)
+    private void register()
+    {
+        IntentFilter filter = new IntentFilter(ACTION);
+
+        if (isRegistered)
+            return;
+
+        if (SDK_INT >= TIRAMISU) {
+            context.registerReceiver(this, filter, Context.RECEIVER_NOT_EXPORTED);
+        } else {
+            context.registerReceiver(this, filter);
+        }
+
+        isRegistered = true;
+    }
+
+    /**
+     * Returns the broadcast to send once the alarm fires.
+     */
+    private PendingIntent getOperation()
+    {
+        Intent intent = new Intent(ACTION)
+                .setPackage(context.getPackageName());
+
+        return PendingIntent.getBroadcast(context, REQUEST_CODE, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+    }
+}
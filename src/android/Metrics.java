@@ -0,0 +1,252 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.os.SystemClock;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Process-wide registry of the runtime metrics of the plugin and its service.
+ * Knows counters, histograms of durations in ms, timers which are running
+ * right now and plain gauges.
+ */
+final class Metrics {
+
+    // Upper bounds in ms of the histogram buckets, the last one is unbounded
+    private static final long[] BOUNDS =
+            { 1, 5, 10, 50, 100, 500, 1000, 5000, 10000, 60000, 600000 };
+
+    // Index of the count within a histogram
+    private static final int COUNT = 0;
+
+    // Index of the sum within a histogram
+    private static final int SUM = 1;
+
+    // Index of the max within a histogram
+    private static final int MAX = 2;
+
+    // Index of the first bucket within a histogram
+    private static final int BUCKETS = 3;
+
+    // Counters by their name
+    private static final Map<String, long[]> counters = new TreeMap<>();
+
+    // Histograms by their name as [count, sum, max, buckets...]
+    private static final Map<String, long[]> histograms = new TreeMap<>();
+
+    // Uptime in ms when each running timer got started
+    private static final Map<String, Long> timers = new TreeMap<>();
+
+    // Gauges by their name
+    private static final Map<String, Object> gauges = new TreeMap<>();
+
+    // Uptime in ms when the session started
+    private static long sessionStart = SystemClock.elapsedRealtime();
+
+    private Metrics() {}
+
+    /**
+     * Increments the counter by one.
+     *
+     * @param name The name of the counter.
+     */
+    static void count (String name)
+    {
+        count(name, 1);
+    }
+
+    /**
+     * Increments the counter by the given delta.
+     *
+     * @param name  The name of the counter.
+     * @param delta The value to add.
+     */
+    static synchronized void count (String name, long delta)
+    {
+        long[] counter = counters.get(name);
+
+        if (counter == null) {
+            counters.put(name, counter = new long[1]);
+        }
+
+        counter[0] += delta;
+    }
+
+    /**
+     * Adds the duration to the histogram.
+     *
+     * @param name  The name of the histogram.
+     * @param value The duration in ms.
+     */
+    static synchronized void record (String name, long value)
+    {
+        long[] histogram = histograms.get(name);
+        int bucket       = 0;
+
+        if (histogram == null) {
+            histograms.put(name, histogram = new long[BUCKETS + BOUNDS.length + 1]);
+        }
+
+        while (bucket < BOUNDS.length && value > BOUNDS[bucket]) {
+            bucket++;
+        }
+
+        histogram[COUNT]++;
+        histogram[SUM] += value;
+        histogram[MAX]  = Math.max(histogram[MAX], value);
+        histogram[BUCKETS + bucket]++;
+    }
+
+    /**
+     * Starts the timer. Running timers report the time passed since.
+     *
+     * @param name The name of the timer.
+     */
+    static synchronized void startTimer (String name)
+    {
+        timers.put(name, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Stops the timer and adds the time passed to the histogram of the same
+     * name.
+     *
+     * @param name The name of the timer.
+     */
+    static synchronized void stopTimer (String name)
+    {
+        Long start = timers.remove(name);
+
+        if (start != null) {
+            record(name, SystemClock.elapsedRealtime() - start);
+        }
+    }
+
+    /**
+     * Sets the gauge to the given value.
+     *
+     * @param name  The name of the gauge.
+     * @param value The current value.
+     */
+    static synchronized void gauge (String name, Object value)
+    {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Resets all counters and histograms and starts a new session. Running
+     * timers restart from now.
+     */
+    static synchronized void reset()
+    {
+        long now = SystemClock.elapsedRealtime();
+
+        counters.clear();
+        histograms.clear();
+
+        for (Map.Entry<String, Long> timer : timers.entrySet()) {
+            timer.setValue(now);
+        }
+
+        sessionStart = now;
+    }
+
+    /**
+     * Returns a compact snapshot of all metrics.
+     */
+    static synchronized JSONObject snapshot()
+    {
+        JSONObject snapshot = new JSONObject();
+        JSONObject section  = new JSONObject();
+        long now            = SystemClock.elapsedRealtime();
+
+        try {
+            JSONArray bounds = new JSONArray();
+
+            for (long bound : BOUNDS) {
+                bounds.put(bound);
+            }
+
+            snapshot.put("session", now - sessionStart);
+            snapshot.put("bounds", bounds);
+
+            for (Map.Entry<String, long[]> counter : counters.entrySet()) {
+                section.put(counter.getKey(), counter.getValue()[0]);
+            }
+
+            snapshot.put("counters", section);
+            section = new JSONObject();
+
+            for (Map.Entry<String, long[]> histogram : histograms.entrySet()) {
+                section.put(histogram.getKey(), toJSON(histogram.getValue()));
+            }
+
+            snapshot.put("histograms", section);
+            section = new JSONObject();
+
+            for (Map.Entry<String, Long> timer : timers.entrySet()) {
+                section.put(timer.getKey(), now - timer.getValue());
+            }
+
+            snapshot.put("timers", section);
+            section = new JSONObject();
+
+            for (Map.Entry<String, Object> gauge : gauges.entrySet()) {
+                section.put(gauge.getKey(), gauge.getValue());
+            }
+
+            snapshot.put("gauges", section);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Converts the histogram into a JSON dict.
+     *
+     * @param histogram The histogram as [count, sum, max, buckets...].
+     */
+    private static JSONObject toJSON (long[] histogram) throws JSONException
+    {
+        JSONObject obj  = new JSONObject();
+        JSONArray list  = new JSONArray();
+
+        for (int i = BUCKETS; i < histogram.length; i++) {
+            list.put(histogram[i]);
+        }
+
+        obj.put("count", histogram[COUNT]);
+        obj.put("sum", histogram[SUM]);
+        obj.put("max", histogram[MAX]);
+        obj.put("buckets", list);
+
+        return obj;
+    }
+}
@@ -0,0 +1,450 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.annotation.TargetApi;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.Resources;
+import android.os.Build;
+import android.os.SystemClock;
+
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static android.content.Context.NOTIFICATION_SERVICE;
+
+/**
+ * Builds the notification of the service. The channel is created once per
+ * process, the icon IDs and the content intent are resolved once and the
+ * builder gets reused for each update.
+ */
+class NotificationFactory {
+
+    // ID of the notification channel for Oreo and higher
+    private static final String CHANNEL_ID = "cordova-plugin-background-mode-id";
+
+    // Default title of the background notification
+    private static final String NOTIFICATION_TITLE =
+            "App is running in background";
+
+    // Default text of the background notification
+    private static final String NOTIFICATION_TEXT =
+            "Doing heavy tasks.";
+
+    // Default icon of the background notification
+    private static final String NOTIFICATION_ICON = "icon";
+
+    // Flag indicates if the channel has been created within this process
+    private static volatile boolean isChannelCreated = false;
+
+    // The context to resolve the resources
+    private final Context context;
+
+    // Resolved icon resource IDs by their name
+    private final Map<String, Integer> icons = new HashMap<>();
+
+    // Reused to build each notification
+    private Notification.Builder builder;
+
+    // Opens the app once the notification got clicked
+    private PendingIntent contentIntent;
+
+    // Flag indicates if the content intent has been resolved
+    private boolean isIntentResolved = false;
+
+    // Wall clock time in ms the chronometer counts from
+    private long startTime = System.currentTimeMillis();
+
+    // Flag indicates if the builder has been set up for the chronometer
+    private boolean isChronometerSet = false;
+
+    /**
+     * Creates the factory for the given service.
+     *
+     * @param context The service to build the notifications for.
+     */
+    NotificationFactory (Context context)
+    {
+        this.context = context;
+    }
+
+    /**
+     * Typed snapshot of the settings which affect the rendering of the
+     * notification.
+     */
+    static final class Snapshot
+    {
+        // Texts, icon name and color as hex or null
+        final String title, text, icon, color;
+
+        // Flags of the notification
+        final boolean bigText, resume, hidden, silent;
+
+        // Max and current value of the progress bar, no bar if max is 0
+        final int progressMax, progress;
+
+        // Flag indicates if the progress bar is indeterminate
+        final boolean indeterminate;
+
+        // Flag indicates if the time since the start is shown as a chronometer
+        final boolean chronometer;
+
+        /**
+         * Takes the snapshot of the settings.
+         *
+         * @param settings The config settings.
+         */
+        Snapshot (JSONObject settings)
+        {
+            title   = settings.optString("title", NOTIFICATION_TITLE);
+            text    = settings.optString("text", NOTIFICATION_TEXT);
+            icon    = settings.optString("icon", NOTIFICATION_ICON);
+            color   = settings.optString("color", null);
+            bigText = settings.optBoolean("bigText", false);
+            resume  = settings.optBoolean("resume");
+            hidden  = settings.optBoolean("hidden", true);
+            silent  = settings.optBoolean("silent", false);
+
+            progressMax   = 0;
+            progress      = 0;
+            indeterminate = false;
+            chronometer   = settings.optBoolean("chronometer", false);
+        }
+
+        /**
+         * Copies the snapshot with other texts and another progress.
+         */
+        private Snapshot (Snapshot base, String title, String text,
+                          int max, int current, boolean indeterminate)
+        {
+            this.title   = title;
+            this.text    = text;
+            icon         = base.icon;
+            color        = base.color;
+            bigText      = base.bigText;
+            resume       = base.resume;
+            hidden       = base.hidden;
+            silent       = base.silent;
+            chronometer  = base.chronometer;
+
+            this.progressMax   = Math.max(max, 0);
+            this.progress      = Math.min(Math.max(current, 0), progressMax);
+            this.indeterminate = indeterminate;
+        }
+
+        /**
+         * Returns a copy of the snapshot with the given progress.
+         *
+         * @param max           The max value, 0 to remove the bar.
+         * @param current       The current value.
+         * @param indeterminate If the progress is indeterminate.
+         */
+        Snapshot withProgress (int max, int current, boolean indeterminate)
+        {
+            return new Snapshot(this, title, text, max, current, indeterminate);
+        }
+
+        /**
+         * Returns a copy of the snapshot with the given texts.
+         *
+         * @param title The title of the notification.
+         * @param text  The text of the notification.
+         */
+        Snapshot withTexts (String title, String text)
+        {
+            return new Snapshot(this, title, text, progressMax, progress, indeterminate);
+        }
+
+        /**
+         * If the title or text contain placeholders to fill in.
+         */
+        boolean isTemplate()
+        {
+            return title.indexOf('{') != -1 || text.indexOf('{') != -1;
+        }
+
+        /**
+         * Returns a copy of the snapshot with the progress of the other one.
+         *
+         * @param other The snapshot to take the progress from or null.
+         */
+        Snapshot withProgressOf (Snapshot other)
+        {
+            if (other == null)
+                return this;
+
+            return withProgress(other.progressMax, other.progress, other.indeterminate);
+        }
+
+        /**
+         * If the notification shows a progress bar.
+         */
+        boolean hasProgress()
+        {
+            return progressMax > 0 || indeterminate;
+        }
+
+        @Override
+        public boolean equals (Object obj)
+        {
+            if (this == obj)
+                return true;
+
+            if (!(obj instanceof Snapshot))
+                return false;
+
+            Snapshot other = (Snapshot) obj;
+
+            return bigText == other.bigText && resume == other.resume
+                    && hidden == other.hidden && silent == other.silent
+                    && progressMax == other.progressMax && progress == other.progress
+                    && indeterminate == other.indeterminate
+                    && chronometer == other.chronometer
+                    && title.equals(other.title) && text.equals(other.text)
+                    && icon.equals(other.icon)
+                    && (color == null ? other.color == null : color.equals(other.color));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return title.hashCode() * 31 + text.hashCode();
+        }
+    }
+
+    /**
+     * Build the notification as specified by the snapshot.
+     *
+     * @param state The snapshot of the settings.
+     */
+    Notification build (Snapshot state)
+    {
+        long start = SystemClock.elapsedRealtimeNanos();
+
+        Notification.Builder notification = getBuilder()
+                .setContentTitle(state.title)
+                .setContentText(state.text)
+                .setSmallIcon(getIconResId(state.icon))
+                .setPriority(state.hidden ? Notification.PRIORITY_MIN
+                                          : Notification.PRIORITY_DEFAULT)
+                .setContentIntent(state.resume ? getContentIntent() : null);
+
+        if (state.bigText || state.text.contains("\n")) {
+            notification.setStyle(new Notification.BigTextStyle().bigText(state.text));
+        } else {
+            notification.setStyle(null);
+        }
+
+        if (state.hasProgress()) {
+            notification.setProgress(state.progressMax, state.progress, state.indeterminate);
+        } else {
+            notification.setProgress(0, 0, false);
+        }
+
+        if (state.chronometer)
+        {
+            notification.setWhen(startTime)
+                        .setShowWhen(true)
+                        .setUsesChronometer(true);
+        }
+        else if (isChronometerSet)
+        {
+            notification.setShowWhen(false)
+                        .setUsesChronometer(false);
+        }
+
+        isChronometerSet = state.chronometer;
+
+        setColor(notification, state.color);
+
+        Notification result = notification.build();
+
+        Metrics.record("notification.build.us",
+                (SystemClock.elapsedRealtimeNanos() - start) / 1000);
+
+        return result;
+    }
+
+    /**
+     * Set the time the chronometer counts from.
+     *
+     * @param time The wall clock time in ms.
+     */
+    void setStartTime (long time)
+    {
+        startTime = time;
+    }
+
+    /**
+     * Returns the reused builder. Creates the channel and the builder on
+     * first use.
+     */
+    Notification.Builder getBuilder()
+    {
+        if (builder != null)
+            return builder;
+
+        createChannel();
+
+        builder = new Notification.Builder(context).setOngoing(true);
+
+        if (Build.VERSION.SDK_INT >= 26) {
+            builder.setChannelId(CHANNEL_ID);
+        }
+
+        return builder;
+    }
+
+    /**
+     * Creates the notification channel once per process.
+     */
+    @TargetApi(26)
+    private void createChannel()
+    {
+        if (isChannelCreated || Build.VERSION.SDK_INT < 26)
+            return;
+
+        // The user-visible name of the channel.
+        CharSequence name = "cordova-plugin-background-mode";
+        // The user-visible description of the channel.
+        String description = "cordova-plugin-background-moden notification";
+
+        int importance = NotificationManager.IMPORTANCE_LOW;
+
+        NotificationChannel mChannel = new NotificationChannel(CHANNEL_ID, name, importance);
+
+        // Configure the notification channel.
+        mChannel.setDescription(description);
+
+        getNotificationManager().createNotificationChannel(mChannel);
+        isChannelCreated = true;
+    }
+
+    /**
+     * Returns the intent to bring the app to foreground, resolved once.
+     */
+    private PendingIntent getContentIntent()
+    {
+        if (isIntentResolved)
+            return contentIntent;
+
+        String pkgName = context.getPackageName();
+        Intent intent  = context.getPackageManager()
+                .getLaunchIntentForPackage(pkgName);
+
+        if (intent != null) {
+            intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_SINGLE_TOP);
+            contentIntent = PendingIntent.getActivity(
+                    context, ForegroundService.NOTIFICATION_ID, intent,
+                    PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+        }
+
+        isIntentResolved = true;
+
+        return contentIntent;
+    }
+
+    /**
+     * Retrieves the resource ID of the app icon.
+     *
+     * @param icon The name of the icon.
+     */
+    private int getIconResId (String icon)
+    {
+        Integer cached = icons.get(icon);
+
+        if (cached != null)
+            return cached;
+
+        int resId = getIconResId(icon, "mipmap");
+
+        if (resId == 0) {
+            resId = getIconResId(icon, "drawable");
+        }
+
+        icons.put(icon, resId);
+
+        return resId;
+    }
+
+    /**
+     * Retrieve resource id of the specified icon.
+     *
+     * @param icon The name of the icon.
+     * @param type The resource type where to look for.
+     *
+     * @return The resource id or 0 if not found.
+     */
+    private int getIconResId (String icon, String type)
+    {
+        Resources res  = context.getResources();
+        String pkgName = context.getPackageName();
+
+        int resId = res.getIdentifier(icon, type, pkgName);
+
+        if (resId == 0) {
+            resId = res.getIdentifier("icon", type, pkgName);
+        }
+
+        return resId;
+    }
+
+    /**
+     * Set notification color if its supported by the SDK.
+     *
+     * @param notification A Notification.Builder instance
+     * @param hex The color definition (red: FF0000) or null
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void setColor (Notification.Builder notification, String hex)
+    {
+        if (Build.VERSION.SDK_INT < 21)
+            return;
+
+        if (hex == null) {
+            notification.setColor(Notification.COLOR_DEFAULT);
+            return;
+        }
+
+        try {
+            int aRGB = Integer.parseInt(hex, 16) + 0xFF000000;
+            notification.setColor(aRGB);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the shared notification service manager.
+     */
+    private NotificationManager getNotificationManager()
+    {
+        return (NotificationManager) context.getSystemService(NOTIFICATION_SERVICE);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import de.appplant.cordova.plugin.background.NotificationFactory.Snapshot;
+
+/**
+ * Limits the rate of the notification updates, as Android drops updates
+ * above about 5 per second. Only the latest pending state is kept, an
+ * update superseded before it got posted is dropped. The final state is
+ * always posted.
+ */
+class NotificationScheduler {
+
+    // Posts the notification for the state
+    interface Poster { void post (Snapshot state); }
+
+    // Used to post the updates on the main thread
+    private final Handler handler;
+
+    // Posts the notification
+    private final Poster poster;
+
+    // Posts the pending update
+    private final Runnable flush = this::flush;
+
+    // The latest state not posted yet
+    private Snapshot pending;
+
+    // Uptime in ms when the last update got posted
+    private long lastPostAt = 0;
+
+    // Flag indicates if a flush is scheduled
+    private boolean isScheduled = false;
+
+    /**
+     * Creates a scheduler posting through the given poster.
+     *
+     * @param handler The handler of the main thread.
+     * @param poster  Posts the notification.
+     */
+    NotificationScheduler (Handler handler, Poster poster)
+    {
+        this.handler = handler;
+        this.poster  = poster;
+    }
+
+    /**
+     * Schedules the update. Posted right away if the last one is long
+     * enough ago, otherwise once the min interval has passed.
+     *
+     * @param state       The state of the notification.
+     * @param minInterval The min time in ms between two updates.
+     */
+    synchronized void submit (Snapshot state, long minInterval)
+    {
+        if (pending != null) {
+            Metrics.count("notification.dropped");
+        }
+
+        pending = state;
+
+        if (isScheduled)
+            return;
+
+        long delay = lastPostAt + minInterval - SystemClock.elapsedRealtime();
+
+        isScheduled = true;
+        handler.postDelayed(flush, Math.max(delay, 0));
+    }
+
+    /**
+     * Discards the pending update.
+     */
+    synchronized void cancel()
+    {
+        handler.removeCallbacks(flush);
+        isScheduled = false;
+        pending     = null;
+    }
+
+    /**
+     * Posts the pending update right away on the calling thread. Used on
+     * shutdown while the main thread is blocked.
+     */
+    void drain()
+    {
+        handler.removeCallbacks(flush);
+        flush();
+    }
+
+    /**
+     * Posts the latest pending update.
+     */
+    private void flush()
+    {
+        Snapshot state;
+
+        synchronized (this)
+        {
+            state       = pending;
+            pending     = null;
+            isScheduled = false;
+            lastPostAt  = SystemClock.elapsedRealtime();
+        }
+
+        if (state == null)
+            return;
+
+        Metrics.count("notification.delivered");
+        poster.post(state);
+    }
+}
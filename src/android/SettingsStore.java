@@ -0,0 +1,234 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Persists the settings and the enabled and active state of the plugin, so
+ * that the service can recover them after it got restarted in a new process.
+ */
+final class SettingsStore {
+
+    // Name of the preferences file
+    private static final String PREFS = "de.appplant.cordova.plugin.background";
+
+    // Key of the settings as JSON
+    private static final String KEY_SETTINGS = "settings";
+
+    // Key of the notification settings updated at runtime as JSON
+    private static final String KEY_UPDATE = "update";
+
+    // Key of the enabled state
+    private static final String KEY_ENABLED = "enabled";
+
+    // Key of the active state
+    private static final String KEY_ACTIVE = "active";
+
+    // Key of the number of restarts after the process got killed
+    private static final String KEY_RESTARTS = "restarts";
+
+    private SettingsStore() {}
+
+    /**
+     * Persists the settings.
+     *
+     * @param context  Any context of the app.
+     * @param settings The settings to persist.
+     */
+    static void saveSettings (Context context, JSONObject settings)
+    {
+        getPrefs(context).edit()
+                .putString(KEY_SETTINGS, settings.toString())
+                .apply();
+    }
+
+    /**
+     * Loads the persisted settings. The time it took is added in µs to the
+     * settings.restore.us histogram.
+     *
+     * @param context Any context of the app.
+     *
+     * @return The settings or an empty dict if there are none.
+     */
+    static JSONObject loadSettings (Context context)
+    {
+        long start  = SystemClock.elapsedRealtimeNanos();
+        String json = getPrefs(context).getString(KEY_SETTINGS, null);
+        JSONObject settings = new JSONObject();
+
+        if (json != null)
+        {
+            try {
+                settings = new JSONObject(json);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+
+        Metrics.record("settings.restore.us",
+                (SystemClock.elapsedRealtimeNanos() - start) / 1000);
+
+        return settings;
+    }
+
+    /**
+     * Persists the notification settings updated while the service is
+     * running, so that a restarted service shows them instead of the
+     * defaults.
+     *
+     * @param context  Any context of the app.
+     * @param settings The merged settings of the update.
+     */
+    static void saveUpdate (Context context, JSONObject settings)
+    {
+        getPrefs(context).edit()
+                .putString(KEY_UPDATE, settings.toString())
+                .apply();
+    }
+
+    /**
+     * Loads the persisted notification settings of the last update.
+     *
+     * @param context Any context of the app.
+     *
+     * @return The settings or null if there was no update since the service
+     *         got started.
+     */
+    static JSONObject loadUpdate (Context context)
+    {
+        String json = getPrefs(context).getString(KEY_UPDATE, null);
+
+        if (json == null)
+            return null;
+
+        try {
+            return new JSONObject(json);
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Discards the persisted update, as a new start of the service begins
+     * with the defaults.
+     *
+     * @param context Any context of the app.
+     */
+    static void clearUpdate (Context context)
+    {
+        getPrefs(context).edit().remove(KEY_UPDATE).apply();
+    }
+
+    /**
+     * Persists the enabled state.
+     *
+     * @param context Any context of the app.
+     * @param enabled If the plugin is enabled.
+     */
+    static void setEnabled (Context context, boolean enabled)
+    {
+        getPrefs(context).edit().putBoolean(KEY_ENABLED, enabled).apply();
+    }
+
+    /**
+     * Returns the persisted enabled state.
+     *
+     * @param context Any context of the app.
+     */
+    static boolean isEnabled (Context context)
+    {
+        return getPrefs(context).getBoolean(KEY_ENABLED, false);
+    }
+
+    /**
+     * Persists the active state.
+     *
+     * @param context Any context of the app.
+     * @param active  If the service is running.
+     */
+    static void setActive (Context context, boolean active)
+    {
+        getPrefs(context).edit().putBoolean(KEY_ACTIVE, active).apply();
+    }
+
+    /**
+     * Returns the persisted active state.
+     *
+     * @param context Any context of the app.
+     */
+    static boolean isActive (Context context)
+    {
+        return getPrefs(context).getBoolean(KEY_ACTIVE, false);
+    }
+
+    /**
+     * Counts a restart of the service after the process got killed. The
+     * count has to be persisted, as each restart runs in a new process.
+     *
+     * @param context Any context of the app.
+     *
+     * @return The number of restarts so far.
+     */
+    static synchronized long addRestart (Context context)
+    {
+        long restarts = getRestarts(context) + 1;
+
+        getPrefs(context).edit().putLong(KEY_RESTARTS, restarts).apply();
+
+        return restarts;
+    }
+
+    /**
+     * Returns the number of restarts since the metrics got reset.
+     *
+     * @param context Any context of the app.
+     */
+    static long getRestarts (Context context)
+    {
+        return getPrefs(context).getLong(KEY_RESTARTS, 0);
+    }
+
+    /**
+     * Resets the number of restarts.
+     *
+     * @param context Any context of the app.
+     */
+    static void clearRestarts (Context context)
+    {
+        getPrefs(context).edit().remove(KEY_RESTARTS).apply();
+    }
+
+    /**
+     * Returns the preferences of the plugin.
+     */
+    private static SharedPreferences getPrefs (Context context)
+    {
+        return context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the registered drain hooks in order of registration before the plugin
+ * goes away. The hooks run on a worker thread and get abandoned once the
+ * deadline has passed, so that a stuck hook cannot block the shutdown.
+ */
+class ShutdownPipeline {
+
+    // Tag used for logging
+    private static final String TAG = "BackgroundMode";
+
+    // Drain hooks by their name
+    private final Map<String, Runnable> hooks = new LinkedHashMap<>();
+
+    // Name of the hook currently running
+    private volatile String current;
+
+    /**
+     * Register a hook to run on shutdown. A hook with the same name gets
+     * replaced.
+     *
+     * @param name The name of the hook.
+     * @param hook The hook to run.
+     */
+    synchronized void register (String name, Runnable hook)
+    {
+        hooks.put(name, hook);
+    }
+
+    /**
+     * Run all hooks and wait for them to complete, but no longer than the
+     * given deadline. A deadline below 1 ms is raised to 1 ms, as a join
+     * without timeout would wait forever.
+     *
+     * @param deadline Max time in ms to wait for the hooks.
+     *
+     * @return The time in ms the shutdown took.
+     */
+    long run (long deadline)
+    {
+        final List<Map.Entry<String, Runnable>> list;
+        long start = SystemClock.elapsedRealtime();
+
+        deadline = Math.max(deadline, 1);
+
+        synchronized (this) {
+            list = new ArrayList<>(hooks.entrySet());
+        }
+
+        Thread worker = new Thread(() -> {
+            for (Map.Entry<String, Runnable> hook : list)
+            {
+                current = hook.getKey();
+
+                try {
+                    hook.getValue().run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+
+            current = null;
+        }, "backgroundmode-shutdown");
+
+        worker.setDaemon(true);
+        worker.start();
+
+        try {
+            worker.join(deadline);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        boolean timedOut = worker.isAlive();
+        long duration    = SystemClock.elapsedRealtime() - start;
+
+        if (timedOut) {
+            worker.interrupt();
+            Metrics.count("shutdown.timeouts");
+            Log.w(TAG, "Shutdown deadline of " + deadline + " ms hit by hook " + current);
+        }
+
+        Metrics.record("shutdown", duration);
+        Log.i(TAG, "Shutdown took " + duration + " ms");
+
+        return duration;
+    }
+}
@@ -0,0 +1,629 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Runs native tasks submitted by name from the JS side on a bounded thread
+ * pool sized to the available cores. Results are collected and delivered in
+ * batches to a single sink.
+ *
+ * Submitted tasks and their results are written to a journal. Once the
+ * process has been restarted, pending tasks get resumed and unread results
+ * get delivered again until the JS side acknowledges them.
+ *
+ * Built-in tasks are:
+ * - gzip:   Compresses the file src into dest, defaults to src + ".gz".
+ * - sha256: Hashes the file path or the string text.
+ * - copy:   Copies the file src to dest.
+ * - move:   Moves the file src to dest.
+ */
+class TaskExecutor {
+
+    // A native task type
+    interface Task { Object run (Context context, JSONObject args) throws Exception; }
+
+    // Receives the batches of results
+    interface Sink { void onResults (JSONArray results); }
+
+    // Notified about the progress of the current run of tasks
+    interface ProgressListener { void onProgress (int done, int total); }
+
+    // Max number of tasks waiting for a free thread
+    private static final int QUEUE_SIZE = 64;
+
+    // Max number of results kept while there's no sink
+    private static final int MAX_UNDELIVERED = 256;
+
+    // Size of the copy buffer
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    // Name of the journal within the files dir
+    private static final String JOURNAL_FILE = "backgroundmode-journal";
+
+    // The process-wide instance
+    private static TaskExecutor instance;
+
+    // Task types by their name
+    private final Map<String, Task> registry = new HashMap<>();
+
+    // Runs the tasks
+    private final ThreadPoolExecutor pool;
+
+    // Used to flush the results on the main thread
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Delivers the collected results
+    private final Runnable flush = this::flush;
+
+    // Results not delivered yet
+    private final List<JSONObject> results = new ArrayList<>();
+
+    // The application context passed to the tasks
+    private final Context context;
+
+    // ID of the last task
+    private final AtomicInteger lastId = new AtomicInteger(0);
+
+    // Number of tasks completed within this process
+    private final AtomicLong completed = new AtomicLong(0);
+
+    // Journal of the submitted tasks and their results
+    private final WorkJournal journal;
+
+    // Latest journal record of the pending tasks and unread results by ID
+    private final Map<Integer, JSONObject> live;
+
+    // Receives the results, if any
+    private Sink sink;
+
+    // Flag indicates if a flush is scheduled
+    private boolean isFlushScheduled = false;
+
+    // Notified about the progress, if any
+    private ProgressListener progressListener;
+
+    // Number of tasks queued since the executor was idle the last time
+    private int runTotal = 0;
+
+    // Number of those tasks completed so far
+    private int runDone = 0;
+
+    /**
+     * Creates the pool and registers the built-in tasks.
+     *
+     * @param context The application context.
+     */
+    private TaskExecutor (Context context)
+    {
+        int cores = Math.max(Runtime.getRuntime().availableProcessors(), 1);
+
+        this.context = context;
+        this.pool    = new ThreadPoolExecutor(cores, cores, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(QUEUE_SIZE),
+                r -> new Thread(r, "backgroundmode-task"));
+
+        pool.allowCoreThreadTimeOut(true);
+
+        registry.put("gzip", TaskExecutor::gzip);
+        registry.put("sha256", TaskExecutor::sha256);
+        registry.put("copy", (ctx, args) -> copy(ctx, args, false));
+        registry.put("move", (ctx, args) -> copy(ctx, args, true));
+
+        journal = new WorkJournal(new File(context.getFilesDir(), JOURNAL_FILE));
+        live    = journal.load();
+
+        journal.compact(live.values(), true);
+        restore();
+    }
+
+    /**
+     * Resumes the pending tasks of the journal and queues its unread results
+     * for delivery.
+     */
+    private synchronized void restore()
+    {
+        for (JSONObject record : new ArrayList<>(live.values()))
+        {
+            int id      = record.optInt("id");
+            String name = record.optString("task");
+
+            lastId.set(Math.max(lastId.get(), id));
+
+            if ("done".equals(record.optString("op")))
+            {
+                JSONObject result = record.optJSONObject("result");
+
+                if (result != null) {
+                    results.add(result);
+                    Metrics.count("executor.restored");
+                }
+                continue;
+            }
+
+            Task task = registry.get(name);
+
+            if (task == null) {
+                ack(id);
+                continue;
+            }
+
+            runTotal++;
+            execute(id, name, task, record.optJSONObject("args"));
+            Metrics.count("executor.resumed");
+        }
+    }
+
+    /**
+     * Returns the process-wide instance.
+     *
+     * @param context Any context of the app.
+     */
+    static synchronized TaskExecutor getInstance (Context context)
+    {
+        if (instance == null) {
+            instance = new TaskExecutor(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    /**
+     * Returns the process-wide instance if it has been created already.
+     * Used by callers which must not load the journal just to read a value.
+     */
+    static synchronized TaskExecutor peekInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * Set the sink to deliver the results to. Results collected in the
+     * meantime get delivered right away.
+     *
+     * @param sink The sink or null to collect the results.
+     */
+    synchronized void setSink (Sink sink)
+    {
+        this.sink = sink;
+        scheduleFlush();
+    }
+
+    /**
+     * Set the listener to notify about the progress. The progress counts
+     * the tasks queued since the executor was idle the last time and gets
+     * reported as 0 of 0 once all of them have completed.
+     *
+     * @param listener The listener or null to remove it.
+     */
+    synchronized void setProgressListener (ProgressListener listener)
+    {
+        progressListener = listener;
+    }
+
+    /**
+     * Reserves the ID for the next task.
+     */
+    int nextId()
+    {
+        return lastId.incrementAndGet();
+    }
+
+    /**
+     * Queues the task for execution. Unknown tasks or a full queue are
+     * reported as failed results.
+     *
+     * @param id   The ID reserved for the task.
+     * @param name The name of the task type.
+     * @param args The arguments of the task.
+     */
+    void submit (int id, String name, JSONObject args)
+    {
+        Task task = registry.get(name);
+
+        synchronized (this)
+        {
+            runTotal++;
+            notifyProgress();
+        }
+
+        if (task == null)
+        {
+            complete(id, name, null, new IllegalArgumentException("Unknown task: " + name), 0, 0);
+            return;
+        }
+
+        synchronized (this)
+        {
+            JSONObject record = new JSONObject();
+
+            try {
+                record.put("op", "submit");
+                record.put("id", id);
+                record.put("task", name);
+                record.put("args", args != null ? args : JSONObject.NULL);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+
+            live.put(id, record);
+            journal.append(record);
+        }
+
+        execute(id, name, task, args);
+    }
+
+    /**
+     * Hands the task over to the pool.
+     *
+     * @param id   The ID of the task.
+     * @param name The name of the task type.
+     * @param task The task to run.
+     * @param args The arguments of the task.
+     */
+    private void execute (int id, String name, Task task, JSONObject args)
+    {
+        long queuedAt = SystemClock.elapsedRealtime();
+
+        try {
+            pool.execute(() -> run(id, name, task, args, queuedAt));
+        } catch (RejectedExecutionException e) {
+            Metrics.count("executor.rejected");
+            complete(id, name, null, new IllegalStateException("Queue is full"), 0, 0);
+        }
+
+        Metrics.gauge("executor.queue", pool.getQueue().size());
+    }
+
+    /**
+     * Called once the JS side has read the results. They won't be delivered
+     * again after a restart.
+     *
+     * @param ids The IDs of the tasks.
+     */
+    synchronized void ack (JSONArray ids)
+    {
+        if (ids == null)
+            return;
+
+        for (int i = 0; i < ids.length(); i++) {
+            ack(ids.optInt(i));
+        }
+
+        journal.compact(live.values(), false);
+    }
+
+    /**
+     * Removes the task from the journal.
+     *
+     * @param id The ID of the task.
+     */
+    private void ack (int id)
+    {
+        JSONObject record = new JSONObject();
+
+        if (live.remove(id) == null)
+            return;
+
+        try {
+            record.put("op", "ack");
+            record.put("id", id);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        journal.append(record);
+    }
+
+    /**
+     * Returns the number of tasks completed within this process.
+     */
+    long getCompleted()
+    {
+        return completed.get();
+    }
+
+    /**
+     * Returns the number of tasks waiting or running.
+     */
+    int getPending()
+    {
+        return pool.getQueue().size() + pool.getActiveCount();
+    }
+
+    /**
+     * Waits until the queued and running tasks have completed and delivers
+     * their results right away on the calling thread. Used on shutdown while
+     * the main thread is blocked. Returns early once interrupted.
+     */
+    void drain()
+    {
+        synchronized (this)
+        {
+            while (runTotal > 0)
+            {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        handler.removeCallbacks(flush);
+        flush();
+    }
+
+    /**
+     * Runs the task on a pool thread.
+     */
+    private void run (int id, String name, Task task, JSONObject args, long queuedAt)
+    {
+        long start = SystemClock.elapsedRealtime();
+        Object value  = null;
+        Exception err = null;
+
+        try {
+            value = task.run(context, args != null ? args : new JSONObject());
+        } catch (Exception e) {
+            err = e;
+        }
+
+        long end = SystemClock.elapsedRealtime();
+
+        Metrics.record("executor.wait", start - queuedAt);
+        Metrics.record("executor.run", end - start);
+        Metrics.gauge("executor.queue", pool.getQueue().size());
+
+        complete(id, name, value, err, start - queuedAt, end - start);
+    }
+
+    /**
+     * Adds the result of the task to the next batch.
+     */
+    private synchronized void complete (int id, String name, Object value,
+                                        Exception err, long wait, long time)
+    {
+        JSONObject result = new JSONObject();
+
+        try {
+            result.put("id", id);
+            result.put("task", name);
+            result.put("ok", err == null);
+            result.put("wait", wait);
+            result.put("time", time);
+
+            if (err == null) {
+                result.put("result", value != null ? value : JSONObject.NULL);
+            } else {
+                result.put("error", String.valueOf(err.getMessage()));
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        Metrics.count(err == null ? "executor.completed" : "executor.failed");
+
+        if (live.containsKey(id))
+        {
+            JSONObject record = new JSONObject();
+
+            try {
+                record.put("op", "done");
+                record.put("id", id);
+                record.put("result", result);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+
+            live.put(id, record);
+            journal.append(record);
+        }
+
+        if (results.size() >= MAX_UNDELIVERED) {
+            ack(results.remove(0).optInt("id"));
+            Metrics.count("executor.dropped");
+        }
+
+        results.add(result);
+        scheduleFlush();
+
+        completed.incrementAndGet();
+        runDone++;
+        notifyProgress();
+
+        if (runDone >= runTotal)
+        {
+            runDone  = 0;
+            runTotal = 0;
+            notifyProgress();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Reports the progress of the current run to the listener.
+     */
+    private void notifyProgress()
+    {
+        if (progressListener != null) {
+            progressListener.onProgress(runDone, runTotal);
+        }
+    }
+
+    /**
+     * Schedules the delivery of the collected results.
+     */
+    private void scheduleFlush()
+    {
+        if (isFlushScheduled || sink == null || results.isEmpty())
+            return;
+
+        isFlushScheduled = true;
+        handler.post(flush);
+    }
+
+    /**
+     * Delivers all collected results as one batch.
+     */
+    private synchronized void flush()
+    {
+        isFlushScheduled = false;
+
+        if (sink == null || results.isEmpty())
+            return;
+
+        JSONArray batch = new JSONArray(results);
+        results.clear();
+
+        Metrics.count("executor.batches");
+        sink.onResults(batch);
+    }
+
+    /**
+     * Resolves the path relative to the files dir of the app. File URLs are
+     * supported as well.
+     */
+    private static File resolve (Context context, String path)
+    {
+        if (path == null || path.isEmpty())
+            throw new IllegalArgumentException("Missing path");
+
+        if (path.startsWith("file:")) {
+            path = Uri.parse(path).getPath();
+        }
+
+        File file = new File(path);
+
+        return file.isAbsolute() ? file : new File(context.getFilesDir(), path);
+    }
+
+    /**
+     * Compresses the file src into dest.
+     */
+    private static Object gzip (Context context, JSONObject args) throws IOException
+    {
+        File src  = resolve(context, args.optString("src", null));
+        File dest = resolve(context, args.optString("dest", src.getPath() + ".gz"));
+
+        try (InputStream in = new FileInputStream(src);
+             OutputStream out = new GZIPOutputStream(new FileOutputStream(dest))) {
+            pipe(in, out);
+        }
+
+        return dest.length();
+    }
+
+    /**
+     * Returns the SHA-256 of the file path or the string text as hex.
+     */
+    private static Object sha256 (Context context, JSONObject args) throws Exception
+    {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        StringBuilder hex    = new StringBuilder(64);
+
+        if (args.has("text")) {
+            digest.update(args.getString("text").getBytes(StandardCharsets.UTF_8));
+        } else {
+            try (InputStream in = new FileInputStream(
+                    resolve(context, args.optString("path", null)))) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+
+                for (int n; (n = in.read(buffer)) != -1;) {
+                    digest.update(buffer, 0, n);
+                }
+            }
+        }
+
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+
+        return hex.toString();
+    }
+
+    /**
+     * Copies or moves the file src to dest.
+     */
+    private static Object copy (Context context, JSONObject args, boolean move)
+            throws IOException
+    {
+        File src  = resolve(context, args.optString("src", null));
+        File dest = resolve(context, args.optString("dest", null));
+        long size = src.length();
+
+        if (move && src.renameTo(dest))
+            return size;
+
+        try (InputStream in = new FileInputStream(src);
+             OutputStream out = new FileOutputStream(dest)) {
+            pipe(in, out);
+        }
+
+        if (move && !src.delete())
+            throw new IOException("Could not delete " + src);
+
+        return size;
+    }
+
+    /**
+     * Copies the input into the output stream.
+     */
+    private static void pipe (InputStream in, OutputStream out) throws IOException
+    {
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        for (int n; (n = in.read(buffer)) != -1;) {
+            out.write(buffer, 0, n);
+        }
+    }
+}
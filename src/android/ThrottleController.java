@@ -0,0 +1,252 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+
+import static android.content.Context.POWER_SERVICE;
+import static android.os.Build.VERSION.SDK_INT;
+import static android.os.Build.VERSION_CODES.Q;
+
+/**
+ * Watches the battery level, the power save mode and the thermal status of
+ * the device and derives a throttle level from them, so that the background
+ * work can back off before the OS kills the app.
+ */
+class ThrottleController extends BroadcastReceiver {
+
+    // Throttle levels, from none to severe
+    enum Level
+    {
+        NONE, LIGHT, MODERATE, SEVERE;
+
+        // Name of the level as known by the JS side
+        final String type = name().toLowerCase();
+
+        // Factor the periodic work gets stretched by
+        final int scale = 1 << ordinal();
+    }
+
+    // Notified on the main thread once the level has changed
+    interface Listener { void onThrottle (Level level); }
+
+    // Battery levels in percent below the levels apply while discharging
+    private static final int[] BATTERY_LEVELS = { 30, 15, 5 };
+
+    // The context to register the receiver
+    private final Context context;
+
+    // Notified once the level has changed
+    private final Listener listener;
+
+    // Used to read the power save mode and thermal status
+    private final PowerManager pm;
+
+    // Listens for the thermal status on Android 10+
+    private Object thermalListener;
+
+    // The battery level in percent
+    private int battery = 100;
+
+    // Flag indicates if the device is charging
+    private boolean isCharging = false;
+
+    // The thermal status as reported by the power manager
+    private int thermal = 0;
+
+    // The current throttle level
+    private Level level = Level.NONE;
+
+    /**
+     * Creates the controller.
+     *
+     * @param context  The context to register the receiver.
+     * @param listener Notified once the level has changed.
+     */
+    ThrottleController (Context context, Listener listener)
+    {
+        this.context  = context;
+        this.listener = listener;
+        this.pm       = (PowerManager) context.getSystemService(POWER_SERVICE);
+    }
+
+    /**
+     * Start to watch the device state.
+     */
+    void start()
+    {
+        IntentFilter filter = new IntentFilter();
+
+        filter.addAction(Intent.ACTION_BATTERY_CHANGED);
+        filter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+
+        Intent sticky = context.registerReceiver(this, filter);
+
+        if (sticky != null) {
+            readBattery(sticky);
+        }
+
+        if (SDK_INT >= Q) {
+            addThermalListener();
+        }
+
+        evaluate();
+    }
+
+    /**
+     * Stop to watch the device state.
+     */
+    void stop()
+    {
+        try {
+            context.unregisterReceiver(this);
+        } catch (IllegalArgumentException e) {
+            // not registered
+        }
+
+        if (SDK_INT >= Q) {
+            removeThermalListener();
+        }
+    }
+
+    /**
+     * Returns the current throttle level.
+     */
+    Level getLevel()
+    {
+        return level;
+    }
+
+    /**
+     * Called on the main thread once the battery or power save mode changed.
+     */
+    @Override
+    public void onReceive (Context context, Intent intent)
+    {
+        if (Intent.ACTION_BATTERY_CHANGED.equals(intent.getAction())) {
+            readBattery(intent);
+        }
+
+        evaluate();
+    }
+
+    /**
+     * Reads the battery level and charging state from the sticky intent.
+     *
+     * @param intent The ACTION_BATTERY_CHANGED intent.
+     */
+    private void readBattery (Intent intent)
+    {
+        int value  = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale  = intent.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+        int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+
+        if (value >= 0 && scale > 0) {
+            battery = value * 100 / scale;
+        }
+
+        isCharging = status == BatteryManager.BATTERY_STATUS_CHARGING
+                || status == BatteryManager.BATTERY_STATUS_FULL;
+    }
+
+    /**
+     * Listens for changes of the thermal status.
+     */
+    @TargetApi(Q)
+    private void addThermalListener()
+    {
+        PowerManager.OnThermalStatusChangedListener l = status -> {
+            thermal = status;
+            evaluate();
+        };
+
+        thermal = pm.getCurrentThermalStatus();
+        pm.addThermalStatusListener(l);
+        thermalListener = l;
+    }
+
+    /**
+     * Stops to listen for changes of the thermal status.
+     */
+    @TargetApi(Q)
+    private void removeThermalListener()
+    {
+        if (thermalListener == null)
+            return;
+
+        pm.removeThermalStatusListener(
+                (PowerManager.OnThermalStatusChangedListener) thermalListener);
+
+        thermalListener = null;
+    }
+
+    /**
+     * Derives the throttle level from the device state and notifies the
+     * listener if it has changed.
+     */
+    private void evaluate()
+    {
+        Level next = Level.NONE;
+
+        if (!isCharging)
+        {
+            for (int i = 0; i < BATTERY_LEVELS.length; i++)
+            {
+                if (battery <= BATTERY_LEVELS[i]) {
+                    next = Level.values()[i + 1];
+                }
+            }
+        }
+
+        if (pm.isPowerSaveMode()) {
+            next = max(next, Level.MODERATE);
+        }
+
+        // THERMAL_STATUS_LIGHT, MODERATE and SEVERE or above
+        next = max(next, Level.values()[Math.min(thermal, Level.SEVERE.ordinal())]);
+
+        Metrics.gauge("throttle.battery", battery);
+        Metrics.gauge("throttle.thermal", thermal);
+        Metrics.gauge("throttle.level", next.type);
+
+        if (next == level)
+            return;
+
+        level = next;
+        Metrics.count("throttle.changes");
+        listener.onThrottle(next);
+    }
+
+    /**
+     * Returns the higher of both levels.
+     */
+    private static Level max (Level a, Level b)
+    {
+        return a.ordinal() >= b.ordinal() ? a : b;
+    }
+}
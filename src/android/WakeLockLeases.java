@@ -0,0 +1,272 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static android.content.Context.POWER_SERVICE;
+import static android.os.PowerManager.PARTIAL_WAKE_LOCK;
+
+/**
+ * Short-lived leases on one shared partial wake lock. The lock is held as
+ * long as at least one lease is alive. Leases not released in time are
+ * reclaimed by a timer.
+ */
+class WakeLockLeases {
+
+    // Tag of the wake lock
+    private static final String TAG = "backgroundmode:lease";
+
+    // Timeout used if none or an invalid one was given
+    private static final long DEFAULT_TIMEOUT = 60 * 1000;
+
+    // Longest timeout allowed for a lease
+    private static final long MAX_TIMEOUT = 30 * 60 * 1000;
+
+    // The process-wide instance
+    private static WakeLockLeases instance;
+
+    // The shared wake lock
+    private final PowerManager.WakeLock wakeLock;
+
+    // Used to reclaim the expired leases
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Reclaims the expired leases
+    private final Runnable reclaim = this::reclaim;
+
+    // Live leases by their ID as [tag, acquired at, expires at]
+    private final Map<Integer, Object[]> leases = new LinkedHashMap<>();
+
+    // Total time in ms the lock was held per tag
+    private final Map<String, Long> heldTime = new HashMap<>();
+
+    // ID of the last lease
+    private int lastId = 0;
+
+    // Number of leases reclaimed by the timer
+    private long reclaimed = 0;
+
+    /**
+     * Creates the shared wake lock.
+     *
+     * @param context The application context.
+     */
+    private WakeLockLeases (Context context)
+    {
+        PowerManager pm = (PowerManager) context.getSystemService(POWER_SERVICE);
+
+        wakeLock = pm.newWakeLock(PARTIAL_WAKE_LOCK, TAG);
+        wakeLock.setReferenceCounted(false);
+    }
+
+    /**
+     * Returns the process-wide instance.
+     *
+     * @param context Any context of the app.
+     */
+    static synchronized WakeLockLeases getInstance (Context context)
+    {
+        if (instance == null) {
+            instance = new WakeLockLeases(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    /**
+     * Takes a new lease on the wake lock.
+     *
+     * @param tag     Describes what the lease is used for.
+     * @param timeout Time in ms after the lease gets reclaimed.
+     *
+     * @return The ID of the lease.
+     */
+    synchronized int acquire (String tag, long timeout)
+    {
+        long now = SystemClock.elapsedRealtime();
+        int id   = ++lastId;
+
+        if (timeout <= 0) {
+            timeout = DEFAULT_TIMEOUT;
+        }
+
+        timeout = Math.min(timeout, MAX_TIMEOUT);
+
+        leases.put(id, new Object[] { tag, now, now + timeout });
+        update(now);
+
+        return id;
+    }
+
+    /**
+     * Releases the lease.
+     *
+     * @param id The ID of the lease.
+     *
+     * @return false if the lease was not alive anymore.
+     */
+    synchronized boolean release (int id)
+    {
+        long now      = SystemClock.elapsedRealtime();
+        Object[] lease = leases.remove(id);
+
+        if (lease == null)
+            return false;
+
+        account(lease, now);
+        update(now);
+
+        return true;
+    }
+
+    /**
+     * Returns the number of live leases.
+     */
+    synchronized int count()
+    {
+        return leases.size();
+    }
+
+    /**
+     * If at least one lease is alive.
+     */
+    synchronized boolean hasActive()
+    {
+        return !leases.isEmpty();
+    }
+
+    /**
+     * Reclaims all leases which have expired.
+     */
+    private synchronized void reclaim()
+    {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Object[]> it = leases.values().iterator();
+
+        while (it.hasNext())
+        {
+            Object[] lease = it.next();
+
+            if ((long) lease[2] > now)
+                continue;
+
+            account(lease, now);
+            it.remove();
+            reclaimed++;
+            Metrics.count("leases.reclaimed");
+        }
+
+        update(now);
+    }
+
+    /**
+     * Holds the lock until the last lease expires or releases it if there's
+     * no lease anymore. Schedules the next reclaim.
+     *
+     * @param now The current uptime in ms.
+     */
+    private void update (long now)
+    {
+        long next = Long.MAX_VALUE;
+        long last = 0;
+
+        handler.removeCallbacks(reclaim);
+
+        for (Object[] lease : leases.values())
+        {
+            next = Math.min(next, (long) lease[2]);
+            last = Math.max(last, (long) lease[2]);
+        }
+
+        if (leases.isEmpty())
+        {
+            if (wakeLock.isHeld()) {
+                wakeLock.release();
+            }
+            return;
+        }
+
+        wakeLock.acquire(last - now);
+        handler.postDelayed(reclaim, Math.max(next - now, 0));
+    }
+
+    /**
+     * Adds the time the lease was alive to the stats of its tag.
+     *
+     * @param lease The lease.
+     * @param now   The current uptime in ms.
+     */
+    private void account (Object[] lease, long now)
+    {
+        String tag = (String) lease[0];
+        long held  = Math.min(now, (long) lease[2]) - (long) lease[1];
+        Long total = heldTime.get(tag);
+
+        heldTime.put(tag, (total != null ? total : 0) + held);
+        Metrics.record("leases.hold", held);
+    }
+
+    /**
+     * Returns the number of live leases and the hold time per tag.
+     */
+    synchronized JSONObject getStats()
+    {
+        JSONObject stats = new JSONObject();
+        JSONObject tags  = new JSONObject();
+        long now         = SystemClock.elapsedRealtime();
+
+        try {
+            for (Map.Entry<String, Long> entry : heldTime.entrySet()) {
+                tags.put(entry.getKey(), (long) entry.getValue());
+            }
+
+            for (Object[] lease : leases.values())
+            {
+                String tag = (String) lease[0];
+                long held  = now - (long) lease[1];
+
+                tags.put(tag, tags.optLong(tag) + held);
+            }
+
+            stats.put("active", leases.size());
+            stats.put("reclaimed", reclaimed);
+            stats.put("tags", tags);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        return stats;
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+import org.json.JSONObject;
+
+import static android.os.PowerManager.PARTIAL_WAKE_LOCK;
+
+/**
+ * Decides when the service holds its partial wake lock. The lock is always
+ * acquired with a timeout, so that it cannot be leaked forever.
+ *
+ * Available modes are:
+ * - indefinite: Holds the lock the whole session by renewing it in time.
+ * - duty:       Holds the lock for wakeLockHold ms, then releases it for
+ *               wakeLockRelease ms and so on. The CPU gets woken up by an
+ *               alarm, as the handler stops while the device sleeps.
+ * - lease:      Holds the lock for wakeLockLease ms and renews it only as
+ *               long as there's pending work.
+ * - tasks:      Holds the lock while background tasks are outstanding and
+ *               releases it taskIdleGrace ms after the last one has ended.
+ */
+abstract class WakeLockPolicy {
+
+    // Supported modes of the policy
+    enum Mode
+    {
+        INDEFINITE, DUTY, LEASE, TASKS;
+
+        // Name of the counter of the total time held
+        final String metric = "wakeLock.held." + name().toLowerCase();
+    }
+
+    // Reports if there's pending work that needs the CPU
+    interface WorkSource { boolean hasPendingWork(); }
+
+    // Tag of the wake lock
+    private static final String TAG = "backgroundmode:wakelock";
+
+    // Timeout of the lock while held open-ended, renewed before it expires
+    private static final long RENEW_INTERVAL = 10 * 60 * 1000;
+
+    // Time in ms the lock gets renewed before its timeout fires
+    private static final long RENEW_MARGIN = 1000;
+
+    // The mode of the policy
+    final Mode mode;
+
+    // Used to schedule the next transition
+    final Handler handler;
+
+    // The partial wake lock
+    private final PowerManager.WakeLock wakeLock;
+
+    // Reports the pending work, if any
+    private WorkSource work;
+
+    // Uptime in ms when the lock got acquired
+    private long heldSince = 0;
+
+    // Uptime in ms when the lock will time out
+    private long heldUntil = 0;
+
+    /**
+     * Creates the policy for the given mode.
+     *
+     * @param mode    The mode of the policy.
+     * @param pm      The power manager to create the wake lock.
+     * @param handler The handler to schedule transitions.
+     */
+    WakeLockPolicy (Mode mode, PowerManager pm, Handler handler)
+    {
+        this.mode    = mode;
+        this.handler = handler;
+        this.wakeLock = pm.newWakeLock(PARTIAL_WAKE_LOCK, TAG);
+
+        wakeLock.setReferenceCounted(false);
+    }
+
+    /**
+     * Creates the policy for the given mode and the options of the settings.
+     *
+     * @param mode      The name of the mode.
+     * @param settings  The settings with the wake lock options.
+     * @param pm        The power manager to create the wake lock.
+     * @param handler   The handler to schedule transitions.
+     * @param scheduler The scheduler to wake up the CPU.
+     */
+    static WakeLockPolicy create (String mode, JSONObject settings,
+                                  PowerManager pm, Handler handler,
+                                  MaintenanceScheduler scheduler)
+    {
+        switch (mode)
+        {
+            case "duty":
+                return new DutyCycle(pm, handler, scheduler,
+                        settings.optLong("wakeLockHold", 30000),
+                        settings.optLong("wakeLockRelease", 30000));
+            case "lease":
+                return new Lease(pm, handler,
+                        settings.optLong("wakeLockLease", 60000));
+            case "tasks":
+                return new Tasks(pm, handler,
+                        settings.optLong("taskIdleGrace", 5000));
+            default:
+                return new Indefinite(pm, handler);
+        }
+    }
+
+    /**
+     * Set the source which reports the pending work.
+     *
+     * @param work The work source.
+     */
+    void setWorkSource (WorkSource work)
+    {
+        this.work = work;
+    }
+
+    /**
+     * If there's pending work that needs the CPU.
+     */
+    boolean hasPendingWork()
+    {
+        return work != null && work.hasPendingWork();
+    }
+
+    /**
+     * Start to apply the policy.
+     */
+    abstract void start();
+
+    /**
+     * Stop the policy and release the lock.
+     */
+    void stop()
+    {
+        release();
+    }
+
+    /**
+     * Called once new work is pending.
+     */
+    void onWorkAdded() {}
+
+    /**
+     * Called once some work has been done.
+     */
+    void onWorkDone() {}
+
+    /**
+     * Acquire or renew the lock for the given time.
+     *
+     * @param timeout The time in ms after the lock gets released.
+     */
+    synchronized void acquire (long timeout)
+    {
+        long now = SystemClock.elapsedRealtime();
+
+        if (heldUntil != 0) {
+            account(now);
+        }
+
+        heldSince = now;
+        heldUntil = now + timeout;
+
+        wakeLock.acquire(timeout);
+    }
+
+    /**
+     * Release the lock if held.
+     */
+    synchronized void release()
+    {
+        if (heldUntil == 0)
+            return;
+
+        account(SystemClock.elapsedRealtime());
+        heldUntil = 0;
+
+        if (wakeLock.isHeld()) {
+            wakeLock.release();
+        }
+    }
+
+    /**
+     * If the lock is held right now.
+     */
+    synchronized boolean isHeld()
+    {
+        return heldUntil > SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Adds the time the lock was held until now to the stats.
+     *
+     * @param now The current uptime in ms.
+     */
+    private void account (long now)
+    {
+        long held = Math.max(Math.min(now, heldUntil) - heldSince, 0);
+
+        Metrics.record("wakeLock.hold", held);
+        Metrics.count(mode.metric, held);
+    }
+
+    /**
+     * Holds the lock the whole session.
+     */
+    private static class Indefinite extends WakeLockPolicy
+    {
+        // Renews the lock before it times out
+        private final Runnable renew = this::start;
+
+        Indefinite (PowerManager pm, Handler handler)
+        {
+            super(Mode.INDEFINITE, pm, handler);
+        }
+
+        @Override
+        void start()
+        {
+            acquire(RENEW_INTERVAL);
+            handler.postDelayed(renew, RENEW_INTERVAL - RENEW_MARGIN);
+        }
+
+        @Override
+        void stop()
+        {
+            handler.removeCallbacks(renew);
+            super.stop();
+        }
+    }
+
+    /**
+     * Holds the lock for a fixed time, then releases it for a fixed time.
+     * Each cycle starts with a wake-up alarm, so that the release phase
+     * ends even if the device fell asleep.
+     */
+    private static class DutyCycle extends WakeLockPolicy
+    {
+        // Name of the job which starts each cycle
+        private static final String JOB = "wakeLock";
+
+        // Wakes up the CPU once the release time has passed
+        private final MaintenanceScheduler scheduler;
+
+        // Time in ms to hold the lock
+        private final long hold;
+
+        // Time in ms to release the lock
+        private final long pause;
+
+        // Releases the lock once the hold time has passed
+        private final Runnable sleep = this::release;
+
+        DutyCycle (PowerManager pm, Handler handler,
+                   MaintenanceScheduler scheduler, long hold, long pause)
+        {
+            super(Mode.DUTY, pm, handler);
+            this.scheduler = scheduler;
+            this.hold      = hold;
+            this.pause     = pause;
+        }
+
+        @Override
+        void start()
+        {
+            scheduler.register(JOB, hold + pause, this::wake);
+            wake();
+        }
+
+        private void wake()
+        {
+            handler.removeCallbacks(sleep);
+            acquire(hold);
+            handler.postDelayed(sleep, hold);
+        }
+
+        @Override
+        void stop()
+        {
+            scheduler.unregister(JOB);
+            handler.removeCallbacks(sleep);
+            super.stop();
+        }
+    }
+
+    /**
+     * Holds the lock for a lease time and renews it while work is pending.
+     * The lock times out a little after the lease, so that the renewal runs
+     * while the CPU is still awake.
+     */
+    private static class Lease extends WakeLockPolicy
+    {
+        // Time in ms of a lease
+        private final long lease;
+
+        // Renews or releases the lock once the lease has expired
+        private final Runnable expire = this::expire;
+
+        Lease (PowerManager pm, Handler handler, long lease)
+        {
+            super(Mode.LEASE, pm, handler);
+            this.lease = lease;
+        }
+
+        @Override
+        void start()
+        {
+            handler.removeCallbacks(expire);
+            acquire(lease + RENEW_MARGIN);
+            handler.postDelayed(expire, lease);
+        }
+
+        private void expire()
+        {
+            if (hasPendingWork()) {
+                start();
+            } else {
+                release();
+            }
+        }
+
+        @Override
+        void onWorkAdded()
+        {
+            if (!isHeld()) {
+                start();
+            }
+        }
+
+        @Override
+        void stop()
+        {
+            handler.removeCallbacks(expire);
+            super.stop();
+        }
+    }
+
+    /**
+     * Holds the lock while work is pending and releases it once idle.
+     */
+    private static class Tasks extends WakeLockPolicy
+    {
+        // Time in ms to wait after the last task before releasing the lock
+        private final long grace;
+
+        // Renews the lock before it times out
+        private final Runnable renew = this::renew;
+
+        // Releases the lock once the idle grace period has passed
+        private final Runnable idle = this::release;
+
+        Tasks (PowerManager pm, Handler handler, long grace)
+        {
+            super(Mode.TASKS, pm, handler);
+            this.grace = grace;
+        }
+
+        @Override
+        void start()
+        {
+            hold();
+
+            if (!hasPendingWork()) {
+                handler.postDelayed(idle, grace);
+            }
+        }
+
+        private void hold()
+        {
+            handler.removeCallbacks(idle);
+            handler.removeCallbacks(renew);
+            acquire(RENEW_INTERVAL);
+            handler.postDelayed(renew, RENEW_INTERVAL - RENEW_MARGIN);
+        }
+
+        private void renew()
+        {
+            if (hasPendingWork()) {
+                hold();
+            } else {
+                release();
+            }
+        }
+
+        @Override
+        void onWorkAdded()
+        {
+            hold();
+        }
+
+        @Override
+        void onWorkDone()
+        {
+            if (hasPendingWork())
+                return;
+
+            handler.removeCallbacks(idle);
+            handler.postDelayed(idle, grace);
+        }
+
+        @Override
+        void stop()
+        {
+            handler.removeCallbacks(renew);
+            handler.removeCallbacks(idle);
+            super.stop();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Append-only journal of the work submitted to the executor, one JSON record
+ * per line. Each write goes straight to the file, so the journal survives
+ * the death of the process.
+ *
+ * Known records are:
+ * - submit: {op, id, task, args}  The task got queued.
+ * - done:   {op, id, result}      The task completed, result not read yet.
+ * - ack:    {op, id}              The result has been read by the JS side.
+ */
+class WorkJournal {
+
+    // Size in bytes after which the journal gets compacted
+    private static final long MAX_SIZE = 256 * 1024;
+
+    // The journal file
+    private final File file;
+
+    // Stream to append the records, opened lazily
+    private OutputStream out;
+
+    /**
+     * Creates a journal backed by the given file.
+     *
+     * @param file The journal file.
+     */
+    WorkJournal (File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Replays the journal and returns the latest live record of each ID,
+     * which is either the submit record of pending work or the done record
+     * of an unread result. A torn last line gets skipped.
+     */
+    synchronized Map<Integer, JSONObject> load()
+    {
+        Map<Integer, JSONObject> live = new LinkedHashMap<>();
+        long start = SystemClock.elapsedRealtime();
+
+        if (!file.exists())
+            return live;
+
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+
+            for (String line; (line = in.readLine()) != null;)
+            {
+                JSONObject record;
+
+                try {
+                    record = new JSONObject(line);
+                } catch (JSONException e) {
+                    Metrics.count("journal.corrupt");
+                    continue;
+                }
+
+                int id = record.optInt("id");
+
+                if ("ack".equals(record.optString("op"))) {
+                    live.remove(id);
+                } else {
+                    live.put(id, record);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        Metrics.record("journal.load", SystemClock.elapsedRealtime() - start);
+
+        return live;
+    }
+
+    /**
+     * Appends the record to the journal.
+     *
+     * @param record The record to append.
+     */
+    synchronized void append (JSONObject record)
+    {
+        try {
+            if (out == null) {
+                out = new FileOutputStream(file, true);
+            }
+
+            out.write((record.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+            Metrics.count("journal.appends");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Rewrites the journal with the live records only, if it has grown too
+     * large or if forced. The new journal replaces the old one atomically.
+     * An empty or missing journal is left as it is.
+     *
+     * @param live  The live records.
+     * @param force Compact regardless of the size.
+     */
+    synchronized void compact (Collection<JSONObject> live, boolean force)
+    {
+        long size = file.length();
+
+        if (size == 0 || (!force && size < MAX_SIZE))
+            return;
+
+        File tmp = new File(file.getPath() + ".tmp");
+
+        try (OutputStream os = new FileOutputStream(tmp)) {
+            for (JSONObject record : live) {
+                os.write((record.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        close();
+
+        if (tmp.renameTo(file)) {
+            Metrics.count("journal.compactions");
+        }
+    }
+
+    /**
+     * Closes the stream, the next append opens it again.
+     */
+    private void close()
+    {
+        if (out == null)
+            return;
+
+        try {
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        out = null;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+
+package de.appplant.cordova.plugin.background;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks the output of the serializer and benchmarks it against building
+ * the same batches through org.json, the way drain() still does.
+ */
+public class EventSerializerTest {
+
+    // Head of a batch sent through the callback
+    private static final String HEAD = EventSerializer.head("callback");
+
+    // Events of a typical batch
+    private static final String[] TYPES =
+            { "activate", "tick", "throttle", "tick", "heartbeat", "tick", "deactivate", "failure" };
+
+    // Precompiled fields of the events, like Event.json
+    private static final String[] FIELDS = new String[TYPES.length];
+
+    static
+    {
+        for (int i = 0; i < TYPES.length; i++) {
+            FIELDS[i] = EventSerializer.fields(TYPES[i]);
+        }
+    }
+
+    // Messages of the events of a typical batch
+    private static final String[] MESSAGES =
+            { null, "1", "moderate", "2", null, "3", null, "Service \"died\"\n" };
+
+    // Fixed time of the batches so that they can be compared
+    private static final long TIME = 1500000000000L;
+
+    // Number of batches built per round of the benchmark
+    private static final int FLUSHES = 20000;
+
+    @Test
+    public void quotesControlAndSeparatorChars()
+    {
+        StringBuilder js = new StringBuilder();
+
+        EventSerializer.appendQuoted(js, "a\"b\\c\nd\re\tf\u0001g\u2028h");
+
+        assertEquals("\"a\\\"b\\\\c\\nd\\re\\tf\\u0001g\\u2028h\"", js.toString());
+    }
+
+    @Test
+    public void batchMatchesOrgJson() throws Exception
+    {
+        JSONObject batch = new JSONObject(serialize(new StringBuilder(256)));
+
+        assertTrue(batch.similar(new JSONObject(baseline())));
+    }
+
+    @Test
+    public void eventWithoutSeqHasNoSeqField() throws Exception
+    {
+        StringBuilder json = EventSerializer.beginBatch(new StringBuilder(), HEAD, TIME);
+
+        EventSerializer.appendEvent(json, 0, EventSerializer.fields("heartbeat"), 42);
+
+        JSONObject event = new JSONObject(EventSerializer.endBatch(json))
+                .getJSONArray("events").getJSONObject(0);
+
+        assertEquals(2, event.length());
+        assertEquals(42, event.getInt("message"));
+    }
+
+    @Test
+    public void scriptCarriesSeqAndMessage()
+    {
+        StringBuilder js = new StringBuilder();
+
+        EventSerializer.appendScript(js, "ns", 7, "ns.fireEvent('tick',", "it's");
+        EventSerializer.appendScript(js, "ns", 8, "ns.fireEvent('tick',", null);
+
+        assertEquals("ns._lastSeq=7;ns.fireEvent('tick',\"it's\");"
+                   + "ns._lastSeq=8;ns.fireEvent('tick',null);", js.toString());
+    }
+
+    /**
+     * Measures the bytes allocated per batch by the serializer and by
+     * org.json. With the reused buffer only the final string should be
+     * left, which has to be well below half of what org.json allocates.
+     */
+    @Test
+    public void allocatesLessThanOrgJson() throws Exception
+    {
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        assumeTrue(mx.isThreadAllocatedMemorySupported());
+        mx.setThreadAllocatedMemoryEnabled(true);
+
+        StringBuilder buffer = new StringBuilder(256);
+        long id              = Thread.currentThread().getId();
+        long sink            = 0;
+
+        for (int round = 0; round < 2; round++)
+        {
+            long start = mx.getThreadAllocatedBytes(id);
+
+            for (int i = 0; i < FLUSHES; i++) {
+                sink += serialize(buffer).length();
+            }
+
+            long serializer = (mx.getThreadAllocatedBytes(id) - start) / FLUSHES;
+
+            start = mx.getThreadAllocatedBytes(id);
+
+            for (int i = 0; i < FLUSHES; i++) {
+                sink += baseline().length();
+            }
+
+            long orgJson = (mx.getThreadAllocatedBytes(id) - start) / FLUSHES;
+
+            // The first round only warms up
+            if (round == 0)
+                continue;
+
+            System.out.println("EventSerializer: " + serializer
+                    + " B/batch, org.json: " + orgJson + " B/batch");
+
+            assertTrue(sink > 0);
+            assertTrue(serializer * 2 < orgJson);
+        }
+    }
+
+    /**
+     * Builds the typical batch through the serializer.
+     */
+    private static String serialize (StringBuilder buffer)
+    {
+        StringBuilder json = EventSerializer.beginBatch(buffer, HEAD, TIME);
+
+        for (int i = 0; i < TYPES.length; i++)
+        {
+            if (i > 0) {
+                json.append(',');
+            }
+
+            EventSerializer.appendEvent(json, i + 1, FIELDS[i], MESSAGES[i]);
+        }
+
+        return EventSerializer.endBatch(json);
+    }
+
+    /**
+     * Builds the typical batch through org.json.
+     */
+    private static String baseline() throws Exception
+    {
+        JSONObject batch = new JSONObject();
+        JSONArray events = new JSONArray();
+
+        for (int i = 0; i < TYPES.length; i++)
+        {
+            JSONObject event = new JSONObject();
+
+            event.put("seq", i + 1);
+            event.put("event", TYPES[i]);
+            event.put("message", MESSAGES[i] != null ? MESSAGES[i] : JSONObject.NULL);
+
+            events.put(event);
+        }
+
+        batch.put("transport", "callback");
+        batch.put("time", TIME);
+        batch.put("events", events);
+
+        return batch.toString();
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+
+package de.appplant.cordova.plugin.background;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.appplant.cordova.plugin.background.LifecycleState.BindState;
+
+import static de.appplant.cordova.plugin.background.LifecycleState.ENABLED;
+import static de.appplant.cordova.plugin.background.LifecycleState.IN_BACKGROUND;
+import static de.appplant.cordova.plugin.background.LifecycleState.START_PENDING;
+import static de.appplant.cordova.plugin.background.LifecycleState.STOP_PENDING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stress tests for the packed lifecycle state. The flags get hammered from
+ * several threads while the bind state moves like it does in the plugin.
+ */
+public class LifecycleStateTest {
+
+    // Number of iterations per thread
+    private static final int ROUNDS = 100000;
+
+    @Test
+    public void requiredFlagsGateTheBind()
+    {
+        LifecycleState state = new LifecycleState();
+
+        assertFalse(state.compareAndSetBind(BindState.IDLE, BindState.BINDING, ENABLED));
+
+        state.setFlag(ENABLED, true);
+
+        assertTrue(state.compareAndSetBind(BindState.IDLE, BindState.BINDING, ENABLED));
+        assertFalse(state.compareAndSetBind(BindState.IDLE, BindState.BINDING, ENABLED));
+        assertEquals(BindState.BINDING, state.getBindState());
+    }
+
+    @Test
+    public void failedBindFallsBackToIdle()
+    {
+        LifecycleState state = new LifecycleState();
+        AtomicInteger calls  = new AtomicInteger();
+
+        LifecycleState.Binding binding = new LifecycleState.Binding()
+        {
+            @Override
+            public boolean bind()
+            {
+                calls.incrementAndGet();
+                return false;
+            }
+
+            @Override
+            public void unbind()
+            {
+                calls.incrementAndGet();
+            }
+        };
+
+        state.setFlag(ENABLED, true);
+        state.setFlag(START_PENDING, true);
+
+        assertFalse(state.start(binding));
+        assertFalse(state.isSet(START_PENDING));
+        assertEquals(BindState.IDLE, state.getBindState());
+        assertFalse(state.stop(binding));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void flagsSurviveConcurrentWriters() throws Exception
+    {
+        LifecycleState state = new LifecycleState();
+        int[] flags          = { IN_BACKGROUND, ENABLED, START_PENDING, STOP_PENDING };
+        AtomicInteger failed = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int flag : flags)
+        {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < ROUNDS; i++)
+                {
+                    if (state.setFlag(flag, true)) failed.incrementAndGet();
+                    if (!state.setFlag(flag, false)) failed.incrementAndGet();
+                }
+
+                state.setFlag(flag, true);
+            }));
+        }
+
+        threads.add(new Thread(() -> {
+            BindState[] cycle = BindState.values();
+
+            for (int i = 0; i < ROUNDS; i++)
+            {
+                BindState from = cycle[i % cycle.length];
+                BindState to   = cycle[(i + 1) % cycle.length];
+
+                if (!state.compareAndSetBind(from, to)) failed.incrementAndGet();
+            }
+        }));
+
+        run(threads);
+
+        assertEquals(0, failed.get());
+
+        for (int flag : flags) {
+            assertTrue(state.isSet(flag));
+        }
+
+        assertEquals(BindState.values()[ROUNDS % 4], state.getBindState());
+    }
+
+    @Test
+    public void onlyOneThreadWinsTheBind() throws Exception
+    {
+        for (int round = 0; round < 1000; round++)
+        {
+            LifecycleState state = new LifecycleState();
+            CountDownLatch start = new CountDownLatch(1);
+            AtomicInteger wins   = new AtomicInteger();
+            List<Thread> threads = new ArrayList<>();
+
+            state.setFlag(ENABLED, true);
+
+            for (int i = 0; i < 4; i++)
+            {
+                threads.add(new Thread(() -> {
+                    await(start);
+
+                    if (state.compareAndSetBind(BindState.IDLE, BindState.BINDING, ENABLED)) {
+                        wins.incrementAndGet();
+                    }
+                }));
+            }
+
+            for (Thread t : threads) t.start();
+            start.countDown();
+            for (Thread t : threads) t.join();
+
+            assertEquals(1, wins.get());
+        }
+    }
+
+    /**
+     * Mimics the plugin: enable, disable, pause and resume arrive on several
+     * threads and only flip the flags, while the start and stop get posted
+     * onto a single UI thread which owns the (un)bind calls. An unbind must
+     * never happen without a prior bind and a service is bound at most once.
+     */
+    @Test
+    public void startAndStopStayBalanced() throws Exception
+    {
+        LifecycleState state = new LifecycleState();
+        ExecutorService ui   = Executors.newSingleThreadExecutor();
+        AtomicInteger bound  = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+
+        Runnable connected = () -> {
+            if (bound.get() == 1) {
+                state.onConnected();
+            }
+        };
+
+        LifecycleState.Binding binding = new LifecycleState.Binding()
+        {
+            @Override
+            public boolean bind()
+            {
+                // bindService() takes a while
+                Thread.yield();
+
+                if (bound.incrementAndGet() != 1) failed.incrementAndGet();
+                ui.execute(connected);
+
+                return true;
+            }
+
+            @Override
+            public void unbind()
+            {
+                if (bound.decrementAndGet() != 0) failed.incrementAndGet();
+            }
+        };
+
+        Runnable start = () -> state.start(binding);
+        Runnable stop  = () -> state.stop(binding);
+
+        for (int flag : new int[] { ENABLED, IN_BACKGROUND })
+        {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < ROUNDS; i++)
+                {
+                    boolean on = i % 2 == 0;
+
+                    state.setFlag(flag, on);
+                    ui.execute(on ? start : stop);
+                }
+            }));
+        }
+
+        run(threads);
+
+        ui.shutdown();
+        assertTrue(ui.awaitTermination(30, TimeUnit.SECONDS));
+
+        assertEquals(0, failed.get());
+        assertEquals(state.getBindState() == BindState.IDLE ? 0 : 1, bound.get());
+    }
+
+    /**
+     * Starts all threads and waits until they are done.
+     */
+    private static void run (List<Thread> threads) throws InterruptedException
+    {
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+    }
+
+    /**
+     * Waits for the latch without throwing.
+     */
+    private static void await (CountDownLatch latch)
+    {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
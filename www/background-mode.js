@@ -151,6 +151,24 @@ exports.configure = function (options)
     cordova.exec(null, null, 'BackgroundMode', 'configure', [options, true]);
 };
 
+/**
+ * Shows a progress bar in the notification (Android only). Pass 0 as max
+ * to remove the bar.
+ *
+ * @param [ Number ] max The max value.
+ * @param [ Number ] current The current value.
+ * @param [ Boolean ] indeterminate If the progress is indeterminate.
+ *
+ * @return [ Void ]
+ */
+exports.setProgress = function (max, current, indeterminate)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(null, null, 'BackgroundMode', 'progress', [max, current, !!indeterminate]);
+    }
+};
+
 /**
  * Enable GPS-tracking in background (Android).
  *
@@ -291,6 +309,163 @@ exports.unlock = function()
     }
 };
 
+/**
+ * Keeps the CPU awake until the lease gets released or expires (Android only).
+ *
+ * @param [ String ] tag Describes what the lease is used for.
+ * @param [ Number ] timeout Time in ms after the lease expires.
+ * @param [ Function ] fn Callback function to invoke with the lease ID.
+ *
+ * @return [ Void ]
+ */
+exports.acquireLease = function (tag, timeout, fn)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, null, 'BackgroundMode', 'acquireLease', [tag, timeout]);
+    }
+    else if (fn)
+    {
+        fn(0);
+    }
+};
+
+/**
+ * Releases the lease on the CPU (Android only).
+ *
+ * @param [ Number ] id The ID of the lease.
+ *
+ * @return [ Void ]
+ */
+exports.releaseLease = function (id)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(null, null, 'BackgroundMode', 'releaseLease', [id]);
+    }
+};
+
+/**
+ * Begins a background task which needs the CPU (Android only).
+ *
+ * @param [ Function ] fn Callback function to invoke with the task token.
+ *
+ * @return [ Void ]
+ */
+exports.beginBackgroundTask = function (fn)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, null, 'BackgroundMode', 'beginTask', []);
+    }
+    else if (fn)
+    {
+        fn(0);
+    }
+};
+
+/**
+ * Ends the background task (Android only).
+ *
+ * @param [ Number ] token The token of the task.
+ *
+ * @return [ Void ]
+ */
+exports.endBackgroundTask = function (token)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(null, null, 'BackgroundMode', 'endTask', [token]);
+    }
+};
+
+/**
+ * Runs a native task like gzip, sha256, copy or move on a background thread
+ * (Android only). The result is passed to the callback and fired as a
+ * result event.
+ *
+ * @param [ String ] name The name of the task.
+ * @param [ Object ] args The arguments of the task.
+ * @param [ Function ] fn Callback function to invoke with the result.
+ *
+ * @return [ Void ]
+ */
+exports.submitTask = function (name, args, fn)
+{
+    var callbacks = this._taskCallbacks;
+
+    if (!this._isAndroid)
+    {
+        if (fn) fn({ task: name, ok: false, error: 'Not supported' });
+        return;
+    }
+
+    this._openResults();
+
+    cordova.exec(function (id) {
+        if (fn) callbacks[id] = fn;
+    }, null, 'BackgroundMode', 'submit', [name, args || {}]);
+};
+
+/**
+ * Number of live leases and the time held per tag (Android only).
+ *
+ * @param [ Function ] fn Callback function to invoke with the stats.
+ *
+ * @return [ Void ]
+ */
+exports.getLeases = function (fn)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(fn, null, 'BackgroundMode', 'leases', []);
+    }
+    else
+    {
+        fn({});
+    }
+};
+
+/**
+ * Snapshot of the native runtime metrics like the number of delivered events,
+ * the wake lock hold times or the service uptime (Android only).
+ *
+ * @param [ Function ] fn Callback function to invoke with the metrics.
+ *
+ * @return [ Void ]
+ */
+exports.getMetrics = function (fn)
+{
+    var latency = this._latency;
+
+    if (this._isAndroid)
+    {
+        cordova.exec(function (metrics) {
+            metrics.deliveryLatency = latency;
+            fn(metrics);
+        }, null, 'BackgroundMode', 'metrics', []);
+    }
+    else
+    {
+        fn({});
+    }
+};
+
+/**
+ * Resets the native runtime metrics to start a new session (Android only).
+ *
+ * @return [ Void ]
+ */
+exports.resetMetrics = function()
+{
+    this._latency = {};
+
+    if (this._isAndroid)
+    {
+        cordova.exec(null, null, 'BackgroundMode', 'resetMetrics', []);
+    }
+};
+
 /**
  * If the mode is enabled or disabled.
  *
@@ -360,6 +535,12 @@ exports.on = function (event, callback, scope)
     var item = [callback, scope || window];
 
     this._listener[event].push(item);
+    this._updateInterest();
+
+    if (event == 'result')
+    {
+        this._openResults();
+    }
 };
 
 /**
@@ -387,6 +568,8 @@ exports.un = function (event, callback)
             break;
         }
     }
+
+    this._updateInterest();
 };
 
 /**
@@ -417,7 +600,25 @@ exports._defaults =
     silent:  false,
     hidden:  true,
     color:   undefined,
-    icon:    'icon'
+    icon:    'icon',
+    enterDelay: 0,
+    exitGrace:  0,
+    killProcess: false,
+    shutdownTimeout: 500,
+    wakeLock: 'indefinite',
+    wakeLockHold: 30000,
+    wakeLockRelease: 30000,
+    wakeLockLease: 60000,
+    taskIdleGrace: 5000,
+    taskMaxLifetime: 600000,
+    throttle: true,
+    tickInterval: 0,
+    tickWakeTime: 10000,
+    heartbeatInterval: 0,
+    notificationInterval: 200,
+    taskProgress: false,
+    chronometer: false,
+    templateInterval: 60000
 };
 
 /**
@@ -444,6 +645,218 @@ exports._mergeObjects = function (options, toMergeIn)
     return options;
 };
 
+/**
+ * @private
+ *
+ * Invoked by the native side with a batch of events.
+ *
+ * @param [ Object|String ] batch The transport, send time and list of
+ *                                events, optionally as JSON.
+ *
+ * @return [ Void ]
+ */
+exports._onNativeEvents = function (batch)
+{
+    if (typeof batch === 'string')
+    {
+        batch = JSON.parse(batch);
+    }
+
+    var events  = batch.events,
+        latency = this._latency[batch.transport];
+
+    if (!latency)
+    {
+        latency = this._latency[batch.transport] = { batches: 0, total: 0 };
+    }
+
+    latency.batches++;
+    latency.total += Date.now() - batch.time;
+
+    for (var i = 0; i < events.length; i++)
+    {
+        var event = events[i].event,
+            seq   = events[i].seq;
+
+        if (event == 'heartbeat')
+        {
+            this.fireEvent(event, events[i].message);
+            cordova.exec(null, null, 'BackgroundMode', 'heartbeat', []);
+            continue;
+        }
+
+        if (seq <= this._lastSeq)
+            continue;
+
+        this._lastSeq = seq;
+
+        if (event == 'activate' || event == 'deactivate' || event == 'failure')
+        {
+            this._setActive(event == 'activate');
+        }
+
+        this.fireEvent(event, events[i].message);
+    }
+
+    if (batch.seq > this._lastSeq)
+    {
+        this._lastSeq = batch.seq;
+    }
+};
+
+/**
+ * @private
+ *
+ * Invoked by the native side with a batch of task results.
+ *
+ * @param [ Array<Object> ] results The results of the completed tasks.
+ *
+ * @return [ Void ]
+ */
+exports._onTaskResults = function (results)
+{
+    var ids = [];
+
+    for (var i = 0; i < results.length; i++)
+    {
+        var result = results[i],
+            fn     = this._taskCallbacks[result.id];
+
+        delete this._taskCallbacks[result.id];
+        ids.push(result.id);
+
+        if (fn) fn(result);
+
+        this.fireEvent('result', result);
+    }
+
+    cordova.exec(null, null, 'BackgroundMode', 'ackResults', [ids]);
+};
+
+/**
+ * @private
+ *
+ * Opens the channel for the task results. Results left from the last
+ * launch are delivered right away.
+ *
+ * @return [ Void ]
+ */
+exports._openResults = function()
+{
+    if (!this._isAndroid || this._isResultsOpen)
+        return;
+
+    this._isResultsOpen = true;
+
+    cordova.exec(function (results) {
+        exports._onTaskResults(results);
+    }, null, 'BackgroundMode', 'results', []);
+};
+
+/**
+ * @private
+ *
+ * Callbacks of the submitted tasks by their ID.
+ */
+exports._taskCallbacks = {};
+
+/**
+ * @private
+ *
+ * Replays all native events missed while the JS timers were paused.
+ *
+ * @return [ Void ]
+ */
+exports._drainEvents = function()
+{
+    var fn = function (batch) {
+        exports._onNativeEvents(batch);
+    };
+
+    cordova.exec(fn, null, 'BackgroundMode', 'drainEvents', [this._lastSeq]);
+};
+
+/**
+ * @private
+ *
+ * Tells the native side which of its events have listeners. The events
+ * which drive the active state are always included.
+ *
+ * @return [ Void ]
+ */
+exports._updateInterest = function()
+{
+    var events = this._nativeEvents,
+        mask   = this._stateMask;
+
+    if (!this._isAndroid)
+        return;
+
+    for (var i = 0; i < events.length; i++)
+    {
+        var listener = this._listener[events[i]];
+
+        if (listener && listener.length > 0)
+        {
+            mask |= 1 << i;
+        }
+    }
+
+    if (mask === this._interest)
+        return;
+
+    this._interest = mask;
+    cordova.exec(null, null, 'BackgroundMode', 'listen', [mask]);
+};
+
+/**
+ * @private
+ *
+ * Events fired by the native side, ordered by their bit in the mask.
+ */
+exports._nativeEvents = ['activate', 'deactivate', 'failure', 'throttle', 'tick', 'heartbeat'];
+
+/**
+ * @private
+ *
+ * Bits of activate, deactivate and failure. They are always delivered as
+ * they keep isActive() up to date, with or without listeners.
+ */
+exports._stateMask = 7;
+
+/**
+ * @private
+ *
+ * Sequence number of the last native event received.
+ */
+exports._lastSeq = 0;
+
+/**
+ * @private
+ *
+ * Invoked with the message port handed over by the native side.
+ *
+ * @param [ MessageEvent ] e The message event.
+ *
+ * @return [ Void ]
+ */
+exports._onPortMessage = function (e)
+{
+    if (e.data !== 'backgroundmode:port' || !e.ports || !e.ports.length)
+        return;
+
+    e.ports[0].onmessage = function (msg) {
+        exports._onNativeEvents(msg.data);
+    };
+};
+
+/**
+ * @private
+ *
+ * Delivery latency in ms of the native events per transport.
+ */
+exports._latency = {};
+
 /**
  * @private
  *
@@ -478,6 +891,24 @@ exports._pluginInitialize = function()
     this._isAndroid = device.platform.match(/^android|amazon/i) !== null;
     this.setDefaults({});
 
+    if (this._isAndroid)
+    {
+        var fn = function (batch) {
+            exports._onNativeEvents(batch);
+        };
+
+        window.addEventListener('message', this._onPortMessage, false);
+
+        document.addEventListener('resume', function () {
+            exports._drainEvents();
+        }, false);
+
+        cordova.exec(fn, null, 'BackgroundMode', 'drainEvents', [-1]);
+        cordova.exec(fn, null, 'BackgroundMode', 'events', []);
+
+        this._updateInterest();
+    }
+
     if (device.platform == 'browser')
     {
         this.enable();